@@ -0,0 +1,67 @@
+package registry.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.openjdk.jmh.annotations.*;
+
+import registry.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecorateBenchmark {
+    @Param({"1", "4", "8"})
+    public int depth;
+    
+    @Param({"REFLECTION", "METHOD_HANDLES"})
+    public FactoryMode factoryMode;
+    
+    Registry registry;
+    Class<?> leaf;
+    
+    @Setup
+    public void setup() throws Exception {
+        registry = new Registry();
+        registry.setFactoryMode(factoryMode);
+        registry.registerInstance(new Dependency());
+        switch (depth) {
+        case 1: leaf = Level1.class; break;
+        case 4: leaf = Level4.class; break;
+        default: leaf = Level8.class;
+        }
+    }
+    
+    @Benchmark
+    public Object createDeepHierarchy() throws Exception {
+        return registry.getInstance(leaf);
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object createDeepHierarchyContended() throws Exception {
+        return registry.getInstance(leaf);
+    }
+    
+    @Benchmark
+    public Object decorateDeepHierarchy() throws Exception {
+        Object o = (depth == 1) ? new Level1() : (depth == 4) ? new Level4() : new Level8();
+        registry.decorateInstance(o);
+        return o;
+    }
+    
+    public static class Dependency { }
+    
+    public static class Level1 { @Inject Dependency d1; }
+    public static class Level2 extends Level1 { @Inject Dependency d2; }
+    public static class Level3 extends Level2 { @Inject Dependency d3; }
+    public static class Level4 extends Level3 { @Inject Dependency d4; }
+    public static class Level5 extends Level4 { @Inject Dependency d5; }
+    public static class Level6 extends Level5 { @Inject Dependency d6; }
+    public static class Level7 extends Level6 { @Inject Dependency d7; }
+    public static class Level8 extends Level7 { @Inject Dependency d8; }
+}
@@ -0,0 +1,59 @@
+package registry.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import registry.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParentChainBenchmark {
+    @Param({"1", "4", "16", "64"})
+    public int depth;
+    
+    @Param({"10", "1000"})
+    public int keys;
+    
+    Registry root;
+    Registry leaf;
+    
+    @Setup
+    public void setup() throws Exception {
+        root = new Registry();
+        for (int i = 0; i < keys; i++)
+            root.registerInstance("key" + i, "value" + i);
+        root.registerInstance(new Marker());
+        
+        leaf = root;
+        for (int i = 0; i < depth; i++)
+            leaf = new Registry(leaf);
+    }
+    
+    @Benchmark
+    public Object namedLookup() throws Exception {
+        return leaf.getInstance("key0");
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object namedLookupContended() throws Exception {
+        return leaf.getInstance("key0");
+    }
+    
+    @Benchmark
+    public Object classLookup() throws Exception {
+        return leaf.getInstance(Marker.class);
+    }
+    
+    @Benchmark
+    public Object childCreation() throws Exception {
+        return new Registry(leaf);
+    }
+    
+    public static class Marker { }
+}
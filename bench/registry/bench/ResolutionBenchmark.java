@@ -0,0 +1,90 @@
+package registry.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.openjdk.jmh.annotations.*;
+
+import registry.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark {
+    @Param({"REFLECTION", "METHOD_HANDLES"})
+    public FactoryMode factoryMode;
+    
+    Registry registry;
+    
+    @Setup
+    public void setup() throws Exception {
+        registry = new Registry();
+        registry.setFactoryMode(factoryMode);
+        registry.registerInstance("email", "name@example.com");
+        registry.getInstance(Service.class);
+    }
+    
+    @Benchmark
+    public Object prototype() throws Exception {
+        return registry.getInstance(Handler.class);
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object prototypeContended() throws Exception {
+        return registry.getInstance(Handler.class);
+    }
+    
+    @Benchmark
+    public Object constructorInjected() throws Exception {
+        return registry.getInstance(ConstructorHandler.class);
+    }
+    
+    @Benchmark
+    public Object singleton() throws Exception {
+        return registry.getInstance(Service.class);
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object singletonContended() throws Exception {
+        return registry.getInstance(Service.class);
+    }
+    
+    @Benchmark
+    public Object namedKey() throws Exception {
+        return registry.getInstance("email");
+    }
+    
+    @Singleton
+    public static class Service {
+        @Inject @Named String email;
+    }
+    
+    public static class Dao {
+        @Inject Service service;
+    }
+    
+    public static class Handler {
+        @Inject Service service;
+        @Inject Dao dao;
+        @Inject @Named String email;
+    }
+    
+    public static class ConstructorHandler {
+        final Service service;
+        final Dao dao;
+        
+        @Inject
+        public ConstructorHandler(Service service, Dao dao) {
+            this.service = service;
+            this.dao = dao;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package registry.bench;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import registry.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(3)
+public class XMLBootstrapBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int size;
+    
+    File config;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        config = File.createTempFile("registry", ".xml");
+        try (PrintWriter w = new PrintWriter(config, "UTF-8")) {
+            w.println("<?xml version=\"1.0\"?>");
+            w.println("<registry>");
+            w.println("  <configurator tag=\"prop\" class=\"registry.PropertyConfigurator\"/>");
+            for (int i = 0; i < size; i++) {
+                w.println("  <property name=\"key" + i + "\" value=\"value" + i + "\"/>");
+                w.println("  <property name=\"ref" + i + "\" value=\"${key" + i + "}-ref\"/>");
+                w.println("  <prop name=\"custom" + i + "\" value=\"value" + i + "\"/>");
+                if (i % 10 == 0)
+                    w.println("  <instance name=\"instance" + i + "\" class=\"java.util.ArrayList\"/>");
+            }
+            w.println("</registry>");
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        config.delete();
+    }
+    
+    @Benchmark
+    public Registry bootstrap() throws Exception {
+        return new XMLRegistryBuilder(config.getPath(), new Properties()).getRegistry();
+    }
+}
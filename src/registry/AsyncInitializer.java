@@ -0,0 +1,7 @@
+package registry;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncInitializer {
+    public CompletableFuture<?> initAsync() throws Exception;
+}
@@ -0,0 +1,9 @@
+package registry;
+
+import java.util.List;
+
+import org.w3c.dom.*;
+
+public interface BatchConfigurator extends Configurator {
+    public void configure(List<Element> elements) throws Exception;
+}
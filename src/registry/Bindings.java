@@ -0,0 +1,319 @@
+package registry;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+@SuppressWarnings("rawtypes")
+class Bindings {
+    private static final Object NULL = new Object();
+    private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+        protected Integer computeValue(Class<?> c) {
+            return register(c);
+        }
+    };
+    private static WeakReference<Class>[] types = newTypes(64);
+    private static int nextId;
+
+    private final Bindings parent;
+    private final Object lock;
+    private volatile Table own;
+    private volatile Table view;
+    private Set<Bindings> children;
+
+    Bindings(Bindings parent) {
+        this.parent = parent;
+        if (parent == null) {
+            lock = this;
+            own = new Table();
+            view = own;
+        } else {
+            lock = parent.lock;
+            if (parent.view == null) {
+                synchronized (lock) {
+                    parent.materialize();
+                }
+            }
+        }
+    }
+
+    private static synchronized int register(Class c) {
+        int id = nextId++;
+        if (id == types.length)
+            types = Arrays.copyOf(types, id * 2);
+        types[id] = new WeakReference<Class>(c);
+        return id;
+    }
+
+    private static synchronized Class typeOf(int id) {
+        return (id < nextId) ? types[id].get() : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WeakReference<Class>[] newTypes(int size) {
+        return new WeakReference[size];
+    }
+
+    private static int id(Class c) {
+        return IDS.get(c);
+    }
+
+    Object get(Class c) {
+        int id = id(c);
+        Table t = own;
+        Object o = (t == null) ? null : t.get(id);
+        if (o != null && o != NULL)
+            return o;
+        if (parent == null)
+            return null;
+        o = parent.view.get(id);
+        return (o == NULL) ? null : o;
+    }
+
+    Object get(String key) {
+        Table t = own;
+        Object o = (t == null) ? null : t.named.get(key);
+        if (o != null && o != NULL)
+            return o;
+        if (parent == null)
+            return null;
+        o = parent.view.named.get(key);
+        return (o == NULL) ? null : o;
+    }
+
+    Object get(Object key) {
+        return (key instanceof Class) ? get((Class)key) : get((String)key);
+    }
+
+    List<Object> unresolvedKeys() {
+        List<Object> keys = new ArrayList<>();
+        Table t = own;
+        if (t == null)
+            return keys;
+        for (Map.Entry<Object, Object> e : t.entries().entrySet())
+            if (e.getValue() == NULL)
+                keys.add(e.getKey());
+        return keys;
+    }
+
+    boolean containsKey(Object key) {
+        Table t = own;
+        return t != null && t.get(key) != null;
+    }
+
+    boolean shadows(Object key) {
+        Table t = own;
+        Object o = (t == null) ? null : t.get(key);
+        return o != null && o != NULL;
+    }
+
+    synchronized boolean putIfAbsent(Object key, Object value) {
+        Table t = writable();
+        if (t.get(key) != null)
+            return false;
+        t.put(key, mask(value));
+        if (value != null)
+            changed(key);
+        return true;
+    }
+
+    synchronized void put(Object key, Object value) {
+        writable().put(key, mask(value));
+        changed(key);
+    }
+
+    synchronized Object remove(Object key) {
+        Table t = own;
+        Object o = (t == null) ? null : t.remove(key);
+        if (o == null)
+            return null;
+        changed(key);
+        return (o == NULL) ? null : o;
+    }
+
+    synchronized void clear() {
+        Table t = own;
+        if (t == null)
+            return;
+        if (view == null) {
+            own = new Table();
+            return;
+        }
+        for (Object key : t.entries().keySet())
+            remove(key);
+    }
+
+    synchronized void replace(Map<Object, Object> puts, Collection<Object> removes) {
+        Table t = (own == null) ? new Table() : own.copy();
+        for (Map.Entry<Object, Object> e : puts.entrySet())
+            t.put(e.getKey(), mask(e.getValue()));
+        for (Object key : removes)
+            t.remove(key);
+        if (view == own)
+            view = t;
+        own = t;
+
+        if (view != null) {
+            Set<Object> keys = new HashSet<>(puts.keySet());
+            keys.addAll(removes);
+            synchronized (lock) {
+                refresh(keys);
+            }
+        }
+    }
+
+    Map<Object, Object> snapshot() {
+        Map<Object, Object> result = new HashMap<>();
+        Table t = own;
+        if (t != null)
+            for (Map.Entry<Object, Object> e : t.entries().entrySet())
+                if (e.getValue() != NULL)
+                    result.put(e.getKey(), e.getValue());
+        return result;
+    }
+
+    private Table writable() {
+        Table t = own;
+        if (t == null)
+            own = t = new Table();
+        return t;
+    }
+
+    private static Object mask(Object o) {
+        return (o == null) ? NULL : o;
+    }
+
+    private void materialize() {
+        if (view != null)
+            return;
+        parent.materialize();
+        synchronized (this) {
+            Table v = new Table();
+            for (Map.Entry<Object, Object> e : parent.view.entries().entrySet())
+                if (e.getValue() != NULL)
+                    v.put(e.getKey(), e.getValue());
+            if (own != null)
+                for (Map.Entry<Object, Object> e : own.entries().entrySet())
+                    if (e.getValue() != NULL)
+                        v.put(e.getKey(), e.getValue());
+            view = v;
+        }
+        if (parent.children == null)
+            parent.children = Collections.newSetFromMap(new WeakHashMap<Bindings, Boolean>());
+        parent.children.add(this);
+    }
+
+    private void changed(Object key) {
+        if (view == null)
+            return;
+        synchronized (lock) {
+            refresh(key);
+        }
+    }
+
+    private void refresh(Set<Object> keys) {
+        if (view != own) {
+            Table v = view.copy();
+            for (Object key : keys) {
+                Object o = get(key);
+                if (o == null)
+                    v.remove(key);
+                else
+                    v.put(key, o);
+            }
+            view = v;
+        }
+        if (children != null)
+            for (Bindings child : children)
+                child.refresh(keys);
+    }
+
+    private void refresh(Object key) {
+        if (view != own) {
+            Object o = get(key);
+            if (o == null)
+                view.remove(key);
+            else
+                view.put(key, o);
+        }
+        if (children != null)
+            for (Bindings child : children)
+                if (!child.shadows(key))
+                    child.refresh(key);
+    }
+
+    private static class Table {
+        final Map<String, Object> named;
+        volatile AtomicReferenceArray<Object> classes;
+
+        Table() {
+            named = new ConcurrentHashMap<>();
+        }
+
+        private Table(Table t) {
+            named = new ConcurrentHashMap<>(t.named);
+            AtomicReferenceArray<Object> a = t.classes;
+            if (a != null) {
+                AtomicReferenceArray<Object> copy = new AtomicReferenceArray<>(a.length());
+                for (int i = 0; i < a.length(); i++)
+                    copy.lazySet(i, a.get(i));
+                classes = copy;
+            }
+        }
+
+        Table copy() {
+            return new Table(this);
+        }
+
+        Object get(int id) {
+            AtomicReferenceArray<Object> a = classes;
+            return (a == null || id >= a.length()) ? null : a.get(id);
+        }
+
+        Object get(Object key) {
+            return (key instanceof Class) ? get(id((Class)key)) : named.get(key);
+        }
+
+        void put(Object key, Object value) {
+            if (!(key instanceof Class)) {
+                named.put((String)key, value);
+                return;
+            }
+            int id = id((Class)key);
+            AtomicReferenceArray<Object> a = classes;
+            if (a == null || id >= a.length()) {
+                AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(Math.max(id + 1, (a == null) ? 16 : a.length() * 2));
+                if (a != null)
+                    for (int i = 0; i < a.length(); i++)
+                        grown.lazySet(i, a.get(i));
+                grown.set(id, value);
+                classes = grown;
+                return;
+            }
+            a.set(id, value);
+        }
+
+        Object remove(Object key) {
+            if (!(key instanceof Class))
+                return named.remove(key);
+            int id = id((Class)key);
+            AtomicReferenceArray<Object> a = classes;
+            return (a == null || id >= a.length()) ? null : a.getAndSet(id, null);
+        }
+
+        Map<Object, Object> entries() {
+            Map<Object, Object> result = new HashMap<Object, Object>(named);
+            AtomicReferenceArray<Object> a = classes;
+            if (a != null) {
+                for (int i = 0; i < a.length(); i++) {
+                    Object o = a.get(i);
+                    Class c = (o == null) ? null : typeOf(i);
+                    if (c != null)
+                        result.put(c, o);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package registry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+@SuppressWarnings("rawtypes")
+public class BootstrapProfiler implements RegistryListener {
+    static final String PROPERTY = "registry.profile";
+    private static final Set<String> CAUSES = new HashSet<>(Arrays.asList(
+            "singleton", "prototype", "instance", "builder", "configurator", "initializer", "batch"));
+
+    private static volatile BootstrapProfiler enabled;
+
+    private final long origin = System.nanoTime();
+    private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+
+    public static BootstrapProfiler enable() {
+        BootstrapProfiler p = new BootstrapProfiler();
+        enabled = p;
+        return p;
+    }
+
+    public static void disable() {
+        enabled = null;
+    }
+
+    static BootstrapProfiler forBootstrap() {
+        BootstrapProfiler p = enabled;
+        if (p == null && System.getProperty(PROPERTY) != null)
+            p = new BootstrapProfiler();
+        return p;
+    }
+
+    public Span span(String category, String name) {
+        return new Span(category, name);
+    }
+
+    public void instanceCreated(Class c, long nanos, boolean singleton) {
+        record(singleton ? "singleton" : "prototype", c.getName(), System.nanoTime() - nanos, nanos);
+    }
+
+    public void instanceDecorated(Class c, long nanos) {
+        record("decorate", c.getName(), System.nanoTime() - nanos, nanos);
+    }
+
+    public void instanceInitialized(Class c, long nanos) {
+        record("init", c.getName(), System.nanoTime() - nanos, nanos);
+    }
+
+    private void record(String category, String name, long start, long nanos) {
+        events.add(new Event(category, name, Thread.currentThread().getId(), start - origin, nanos));
+    }
+
+    public void writeChromeTrace(Writer w) throws IOException {
+        w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        Map<Event, String> chains = new IdentityHashMap<>();
+        boolean first = true;
+        for (Event e : timeline(chains)) {
+            if (!first)
+                w.write(',');
+            first = false;
+            w.write("\n{\"name\":" + json(e.name) + ",\"cat\":" + json(e.category) +
+                    ",\"ph\":\"X\",\"pid\":1,\"tid\":" + e.thread +
+                    ",\"ts\":" + micros(e.start) + ",\"dur\":" + micros(e.nanos));
+            String chain = chains.get(e);
+            if (chain != null)
+                w.write(",\"args\":{\"chain\":" + json(chain) + "}");
+            w.write('}');
+        }
+        w.write("\n]}\n");
+    }
+
+    public String summary() {
+        Map<Event, String> causes = new IdentityHashMap<>();
+        List<Event> timeline = timeline(causes);
+        Map<String, Long> categories = new TreeMap<>();
+        Map<String, long[]> components = new TreeMap<>();
+        Map<String, String> chains = new HashMap<>();
+        for (Event e : timeline) {
+            Long total = categories.get(e.category);
+            categories.put(e.category, (total == null ? 0 : total) + e.nanos);
+            String key = e.category + " " + e.name;
+            long[] stats = components.get(key);
+            if (stats == null)
+                components.put(key, stats = new long[2]);
+            stats[0]++;
+            stats[1] += e.nanos;
+            String chain = causes.get(e);
+            if (chain != null && !chains.containsKey(key))
+                chains.put(key, chain);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("phases\n");
+        for (Map.Entry<String, Long> e : categories.entrySet())
+            sb.append(String.format(Locale.ROOT, "  %-12s %10.3f ms%n", e.getKey(), e.getValue() / 1e6));
+        sb.append("components\n");
+        for (Map.Entry<String, long[]> e : components.entrySet()) {
+            long[] stats = e.getValue();
+            sb.append(String.format(Locale.ROOT, "  %-60s %5d %10.3f ms", e.getKey(), stats[0], stats[1] / 1e6));
+            String chain = chains.get(e.getKey());
+            if (chain != null)
+                sb.append("  via ").append(chain);
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    public void write(String prefix) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(prefix + ".json"), StandardCharsets.UTF_8)) {
+            writeChromeTrace(w);
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(prefix + ".txt"), StandardCharsets.UTF_8)) {
+            w.write(summary());
+        }
+    }
+
+    void finished() {
+        String prefix = System.getProperty(PROPERTY);
+        if (enabled == this || prefix == null)
+            return;
+        try {
+            write(prefix);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private List<Event> timeline(Map<Event, String> chains) {
+        List<Event> timeline = new ArrayList<>(events);
+        Collections.sort(timeline, new Comparator<Event>() {
+            public int compare(Event a, Event b) {
+                if (a.start != b.start)
+                    return Long.compare(a.start, b.start);
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        Map<Long, Deque<Event>> stacks = new HashMap<>();
+        for (Event e : timeline) {
+            Deque<Event> stack = stacks.get(e.thread);
+            if (stack == null)
+                stacks.put(e.thread, stack = new ArrayDeque<>());
+            while (!stack.isEmpty() && stack.peek().start + stack.peek().nanos <= e.start)
+                stack.pop();
+            if (e.isConstruction()) {
+                StringBuilder chain = new StringBuilder();
+                for (Iterator<Event> i = stack.descendingIterator(); i.hasNext(); ) {
+                    Event outer = i.next();
+                    if (!CAUSES.contains(outer.category))
+                        continue;
+                    if (chain.length() > 0)
+                        chain.append(" > ");
+                    chain.append(outer.name);
+                }
+                if (chain.length() > 0)
+                    chains.put(e, chain.toString());
+            }
+            stack.push(e);
+        }
+        return timeline;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+    }
+
+    private static String json(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (ch < 0x20)
+                    sb.append(String.format("\\u%04x", (int)ch));
+                else
+                    sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public class Span implements AutoCloseable {
+        private final String category;
+        private final String name;
+        private final long start = System.nanoTime();
+
+        Span(String category, String name) {
+            this.category = category;
+            this.name = name;
+        }
+
+        public void close() {
+            record(category, name, start, System.nanoTime() - start);
+        }
+    }
+
+    private static class Event {
+        final String category;
+        final String name;
+        final long thread;
+        final long start;
+        final long nanos;
+
+        Event(String category, String name, long thread, long start, long nanos) {
+            this.category = category;
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.nanos = nanos;
+        }
+
+        boolean isConstruction() {
+            return category.equals("singleton") || category.equals("prototype");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package registry;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class BoundedScope implements InstanceScope {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<Class, Entry> entries;
+    private List<Object> evicting;
+
+    public BoundedScope(int maxSize) {
+        this(maxSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public BoundedScope(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1: " + maxSize);
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        entries = new LinkedHashMap<Class, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Class, Entry> eldest) {
+                if (size() <= BoundedScope.this.maxSize && (size() == 1 || !eldest.getValue().isExpired(System.nanoTime())))
+                    return false;
+                evicting.add(eldest.getValue().instance);
+                return true;
+            }
+        };
+    }
+
+    public <T> T getInstance(Class<T> c, RegistryInstanceBuilder<T> builder) throws Exception {
+        List<Object> evicted = new ArrayList<>();
+        T instance;
+        try {
+            instance = lookup(c, builder, evicted);
+        } catch (Throwable t) {
+            try {
+                Disposal.disposeAll(evicted);
+            } catch (RegistryException e) {
+                t.addSuppressed(e);
+            }
+            throw t;
+        }
+        Disposal.disposeAll(evicted);
+        return instance;
+    }
+
+    private <T> T lookup(Class<T> c, RegistryInstanceBuilder<T> builder, List<Object> evicted) throws Exception {
+        synchronized (entries) {
+            Entry e = entries.get(c);
+            if (e != null && !e.isExpired(System.nanoTime()))
+                return (T)e.instance;
+            if (e != null) {
+                entries.remove(c);
+                evicted.add(e.instance);
+            }
+        }
+
+        Object o = builder.createInstance();
+        synchronized (entries) {
+            Entry e = entries.get(c);
+            if (e != null) {
+                evicted.add(o);
+                return (T)e.instance;
+            }
+            evicting = evicted;
+            try {
+                entries.put(c, new Entry(o));
+            } finally {
+                evicting = null;
+            }
+        }
+        return (T)o;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() throws RegistryException {
+        List<Object> all = new ArrayList<>();
+        synchronized (entries) {
+            for (Entry e : entries.values())
+                all.add(e.instance);
+            entries.clear();
+        }
+        Disposal.disposeAll(all);
+    }
+
+    private class Entry {
+        final Object instance;
+        final long created = System.nanoTime();
+
+        Entry(Object instance) {
+            this.instance = instance;
+        }
+
+        boolean isExpired(long now) {
+            return ttlNanos > 0 && now - created > ttlNanos;
+        }
+    }
+}
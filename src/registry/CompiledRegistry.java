@@ -0,0 +1,5 @@
+package registry;
+
+public interface CompiledRegistry {
+    public void configure(XMLRegistryBuilder builder) throws Exception;
+}
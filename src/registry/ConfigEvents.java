@@ -0,0 +1,92 @@
+package registry;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.w3c.dom.*;
+
+class ConfigEvents {
+    static final byte PROPERTY = 'P';
+    static final byte INSTANCE = 'I';
+    static final byte CONFIGURATOR = 'C';
+    static final byte INIT = 'T';
+    static final byte ELEMENT = 'E';
+    static final byte END = 0;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private ByteBuffer in;
+
+    void record(byte kind, String... values) throws IOException {
+        out.writeByte(kind);
+        for (String v : values)
+            writeString(v);
+    }
+
+    void element(String tag, Element e) throws IOException {
+        out.writeByte(ELEMENT);
+        writeString(tag);
+        writeElement(e);
+    }
+
+    private void writeElement(Element e) throws IOException {
+        writeString(e.getTagName());
+        NamedNodeMap attributes = e.getAttributes();
+        out.writeInt(attributes.getLength());
+        for (int i = 0; i < attributes.getLength(); i++) {
+            writeString(attributes.item(i).getNodeName());
+            writeString(attributes.item(i).getNodeValue());
+        }
+        NodeList children = e.getChildNodes();
+        out.writeInt(children.getLength());
+        for (int i = 0; i < children.getLength(); i++) {
+            Node n = children.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                out.writeByte(1);
+                writeElement((Element)n);
+            } else {
+                out.writeByte(0);
+                writeString(n.getNodeValue());
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    ConfigEvents finish() throws IOException {
+        out.writeByte(END);
+        out.flush();
+        in = ByteBuffer.wrap(bytes.toByteArray());
+        return this;
+    }
+
+    byte next() {
+        return in.get();
+    }
+
+    String string() {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    Element element(Document doc) {
+        Element e = doc.createElement(string());
+        int attributes = in.getInt();
+        for (int i = 0; i < attributes; i++)
+            e.setAttribute(string(), string());
+        int children = in.getInt();
+        for (int i = 0; i < children; i++) {
+            if (in.get() == 1)
+                e.appendChild(element(doc));
+            else
+                e.appendChild(doc.createTextNode(string()));
+        }
+        return e;
+    }
+}
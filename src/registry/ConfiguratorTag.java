@@ -0,0 +1,9 @@
+package registry;
+
+import java.lang.annotation.*;
+
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ConfiguratorTag {
+    String value();
+}
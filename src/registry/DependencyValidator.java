@@ -0,0 +1,115 @@
+package registry;
+
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.*;
+
+import registry.InjectionPlan.Dependency;
+import registry.InjectionPlan.InjectionPoint;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class DependencyValidator {
+    private final Registry registry;
+    private final Map<Class, Boolean> visited = new HashMap<>();
+    private final Deque<Class> path = new ArrayDeque<>();
+    private final List<Class> deferred = new ArrayList<>();
+    private final List<Class<?>> order = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+
+    DependencyValidator(Registry registry) {
+        this.registry = registry;
+    }
+
+    List<Class<?>> validate(Collection<Class> roots) throws Exception {
+        for (Class c : roots)
+            visit(c);
+        for (int i = 0; i < deferred.size(); i++)
+            visit(deferred.get(i));
+
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String e : errors) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                sb.append(e);
+            }
+            throw new RegistryException(sb.toString());
+        }
+        return order;
+    }
+
+    private void visit(Class c) throws Exception {
+        c = implementation(c);
+        if (c == null)
+            return;
+        Boolean done = visited.get(c);
+        if (done == Boolean.TRUE)
+            return;
+        if (done == Boolean.FALSE) {
+            cycle(c);
+            return;
+        }
+
+        visited.put(c, Boolean.FALSE);
+        path.push(c);
+        InjectionPlan plan = InjectionPlan.of(c);
+        if (plan.constructor == null || Modifier.isAbstract(c.getModifiers()))
+            errors.add(c.getName() + " can not be instantiated");
+        else
+            for (Dependency d : plan.parameters)
+                check(c, d);
+        for (InjectionPoint ip : plan.fields)
+            check(c, ip);
+        path.pop();
+        visited.put(c, Boolean.TRUE);
+        order.add(c);
+    }
+
+    private Class implementation(Class c) throws Exception {
+        if (registry.getBinding(c) != null)
+            return null;
+        if (!c.isInterface())
+            return c;
+        Class impl = InjectionPlan.of(c).defaultImplementation;
+        if (impl == null) {
+            errors.add("No default implementation for interface: " + c.getName());
+            return null;
+        }
+        return (registry.getBinding(impl) != null) ? null : impl;
+    }
+
+    private void check(Class owner, Dependency d) throws Exception {
+        if (d.lazy && !d.target.isInterface())
+            errors.add("@Lazy requires an interface type: " + d.target.getName());
+        if (d.name != null) {
+            if (d.isDeferred())
+                return;
+            Object bound = registry.getBinding(d.name);
+            if (bound == null)
+                errors.add(owner.getName() + " has unsatisfied dependency:  key " + d.name);
+            else if (!assignable(d.type, bound))
+                errors.add(owner.getName() + " has mistyped dependency:  key " + d.name + " is not a " + d.type.getName());
+            return;
+        }
+        if (d.isDeferred()) {
+            if (d.target != Object.class)
+                deferred.add(d.target);
+            return;
+        }
+        visit(d.type);
+    }
+
+    private static boolean assignable(Class type, Object bound) {
+        Class c = (bound instanceof Producer) ? ((Producer)bound).type() : bound.getClass();
+        return type.isPrimitive() || c.isPrimitive() || type == Duration.class || type.isAssignableFrom(c);
+    }
+
+    private void cycle(Class c) {
+        StringBuilder sb = new StringBuilder("Dependency cycle: ");
+        List<Class> chain = new ArrayList<>(path);
+        Collections.reverse(chain);
+        for (Class k : chain.subList(chain.indexOf(c), chain.size()))
+            sb.append(k.getName()).append(" -> ");
+        errors.add(sb.append(c.getName()).toString());
+    }
+}
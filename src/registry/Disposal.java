@@ -0,0 +1,164 @@
+package registry;
+
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+@SuppressWarnings("rawtypes")
+class Disposal implements Runnable {
+    static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "registry-disposal");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(DAEMONS);
+    private static final Cleaner CLEANER = Cleaner.create(DAEMONS);
+
+    private final List<Object> instances = new ArrayList<>();
+    private final Map<Object, List<Object>> dependencies = new IdentityHashMap<>();
+    private volatile RegistryListener listener;
+
+    Disposal(RegistryListener listener) {
+        this.listener = listener;
+    }
+
+    static void register(Registry registry, Disposal disposal) {
+        CLEANER.register(registry, disposal);
+    }
+
+    void setListener(RegistryListener listener) {
+        this.listener = listener;
+    }
+
+    static boolean isDisposable(Object o) throws Exception {
+        return o instanceof AutoCloseable || InjectionPlan.of(o.getClass()).preDestroy != null;
+    }
+
+    static void disposeAll(Collection<Object> all) throws RegistryException {
+        List<Exception> failures = new ArrayList<>();
+        for (Object o : all) {
+            Exception e = close(o);
+            if (e != null)
+                failures.add(e);
+        }
+        if (!failures.isEmpty())
+            throw failure(failures);
+    }
+
+    static RegistryException failure(List<Exception> failures) {
+        RegistryException e = new RegistryException(failures.size() + " component(s) failed to dispose");
+        for (Exception f : failures)
+            e.addSuppressed(f);
+        return e;
+    }
+
+    private static Exception close(Object o) {
+        try {
+            InjectionPlan plan = InjectionPlan.of(o.getClass());
+            if (plan.preDestroy != null)
+                plan.preDestroy.invoke(o);
+            if (o instanceof AutoCloseable)
+                ((AutoCloseable)o).close();
+            return null;
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getCause();
+            return (t instanceof Exception) ? (Exception)t : e;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    synchronized void add(Object o, List<Object> dependsOn) {
+        if (dependencies.put(o, dependsOn) == null)
+            instances.add(o);
+    }
+
+    synchronized boolean remove(Object o) {
+        if (dependencies.remove(o) == null)
+            return false;
+        for (Iterator<Object> it = instances.iterator(); it.hasNext();) {
+            if (it.next() == o) {
+                it.remove();
+                break;
+            }
+        }
+        return true;
+    }
+
+    public void run() {
+        List<Exception> failures = new ArrayList<>();
+        dispose(DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, failures);
+        if (failures.isEmpty())
+            return;
+        RegistryException e = failure(failures);
+        RegistryListener l = listener;
+        if (l != null) {
+            l.disposalFailed(e);
+        } else {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+    }
+
+    List<Object> dispose(long timeout, TimeUnit unit, final List<Exception> failures) {
+        List<Object> all;
+        Map<Object, List<Object>> dependents = new IdentityHashMap<>();
+        synchronized (this) {
+            all = new ArrayList<>(instances);
+            for (Object o : all)
+                dependents.put(o, new ArrayList<>());
+            for (Object o : all)
+                for (Object d : dependencies.get(o))
+                    if (d != o && dependents.containsKey(d))
+                        dependents.get(d).add(o);
+            instances.clear();
+            dependencies.clear();
+        }
+        if (all.isEmpty())
+            return all;
+
+        Queue<Exception> failed = new ConcurrentLinkedQueue<>();
+        Map<Object, CompletableFuture<Void>> done = new IdentityHashMap<>();
+        for (Object o : all)
+            disposal(o, dependents, done, failed, timeout, unit);
+        CompletableFuture.allOf(done.values().toArray(new CompletableFuture[done.size()])).join();
+        failures.addAll(failed);
+        return all;
+    }
+
+    private static CompletableFuture<Void> disposal(final Object o, Map<Object, List<Object>> dependents,
+            Map<Object, CompletableFuture<Void>> done, final Queue<Exception> failures, final long timeout, final TimeUnit unit) {
+        CompletableFuture<Void> f = done.get(o);
+        if (f != null)
+            return f;
+        done.put(o, CompletableFuture.<Void>completedFuture(null));
+        List<CompletableFuture<Void>> before = new ArrayList<>();
+        for (Object d : dependents.get(o))
+            before.add(disposal(d, dependents, done, failures, timeout, unit));
+        f = CompletableFuture.allOf(before.toArray(new CompletableFuture[before.size()]))
+                .thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                    public CompletableFuture<Void> apply(Void v) {
+                        return CompletableFuture.runAsync(new Runnable() {
+                            public void run() {
+                                Exception e = close(o);
+                                if (e != null)
+                                    failures.add(e);
+                            }
+                        }, EXECUTOR).orTimeout(timeout, unit).exceptionally(new Function<Throwable, Void>() {
+                            public Void apply(Throwable t) {
+                                failures.add(new RegistryException("timed out disposing " + o.getClass().getName()));
+                                return null;
+                            }
+                        });
+                    }
+                });
+        done.put(o, f);
+        return f;
+    }
+}
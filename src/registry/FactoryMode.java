@@ -0,0 +1,6 @@
+package registry;
+
+public enum FactoryMode {
+    REFLECTION,
+    METHOD_HANDLES
+}
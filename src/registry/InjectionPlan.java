@@ -0,0 +1,488 @@
+package registry;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.*;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class InjectionPlan {
+    private static volatile ClassValue<InjectionPlan> plans = new Plans();
+    private static final LongAdder lookups = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static volatile RegistryIndex index;
+
+    final Class type;
+    final Class defaultImplementation;
+    final Constructor constructor;
+    final Class[] parameterTypes;
+    final Dependency[] parameters;
+    final InjectionPoint[] fields;
+    final InjectionPoint[] staticFields;
+    final Provision[] provisions;
+    final Callback preDestroy;
+    final boolean initializer;
+    final boolean asyncInitializer;
+    final boolean singleton;
+    final Class scope;
+    private MethodHandle factory;
+
+    private InjectionPlan(Class c, RegistryIndex index) throws ReflectiveOperationException {
+        type = c;
+        RegistryIndex.Entry e = (index == null) ? null : index.get(c);
+        List<InjectionPoint> all = new ArrayList<>();
+        List<Provision> provided = new ArrayList<>();
+        if (e != null) {
+            defaultImplementation = (c.isInterface() && e.defaultImplementation != null) ?
+                    load(e.defaultImplementation, c) : null;
+            constructor = indexedConstructor(c, e);
+            singleton = e.singleton;
+            scope = (e.scope != null) ? load(e.scope, c) : null;
+            for (String[] f : e.provides)
+                provided.add(new Provision(c, f[0], typeOf(f[2], c), f[3].equals("1"), f[1]));
+            for (String[] m : e.producers)
+                provided.add(new Provision(c.getDeclaredMethod(m[0], typesOf(m[1], c)), m[2]));
+        } else {
+            Default da = (Default)c.getAnnotation(Default.class);
+            defaultImplementation = (c.isInterface() && da != null) ? da.value() : null;
+            constructor = findConstructor(c);
+            singleton = c.getAnnotation(Singleton.class) != null;
+            scope = findScope(c);
+            for (Field f : c.getDeclaredFields())
+                if (f.isAnnotationPresent(Provides.class))
+                    provided.add(new Provision(f, InjectionPoint.getResName(f)));
+            for (Method m : c.getDeclaredMethods())
+                if (m.isAnnotationPresent(Provides.class))
+                    provided.add(new Provision(m, getResName(m.getAnnotation(Named.class), m.getName())));
+        }
+        parameterTypes = (constructor != null) ? constructor.getParameterTypes() : new Class[0];
+        parameters = new Dependency[parameterTypes.length];
+        if (constructor != null) {
+            Parameter[] ps = constructor.getParameters();
+            for (int i = 0; i < ps.length; i++) {
+                boolean lazy = (e != null) ? e.lazyParameters != null && e.lazyParameters.charAt(i) == '1' :
+                        ps[i].isAnnotationPresent(Lazy.class);
+                parameters[i] = new Dependency(ps[i].getType(), ps[i].getParameterizedType(), null, lazy);
+            }
+        }
+
+        Callback destroy = null;
+        for (Class k = c; k != null; k = k.getSuperclass()) {
+            RegistryIndex.Entry ke = (index == null) ? null : index.get(k);
+            if (ke != null) {
+                for (String[] f : ke.fields) {
+                    Class type = typeOf(f[3], k);
+                    Class target = f[5].equals("-") ? type : typeOf(f[5], k);
+                    all.add(new InjectionPoint(k, f[0], type, target, f[4].equals("1"), f[1], f[2].equals("1")));
+                }
+                if (destroy == null && ke.preDestroy != null)
+                    destroy = new Callback(k, ke.preDestroy, typeOf(ke.preDestroyType, k));
+                continue;
+            }
+            for (Field f : k.getDeclaredFields())
+                if (f.getAnnotation(Inject.class) != null)
+                    all.add(new InjectionPoint(f));
+            if (destroy == null)
+                for (Method m : k.getDeclaredMethods())
+                    if (m.isAnnotationPresent(PreDestroy.class) && m.getParameterCount() == 0)
+                        destroy = new Callback(m);
+        }
+        preDestroy = destroy;
+        List<InjectionPoint> statics = new ArrayList<>();
+        for (InjectionPoint ip : all)
+            if (ip.isStatic)
+                statics.add(ip);
+        fields = all.toArray(new InjectionPoint[all.size()]);
+        staticFields = statics.toArray(new InjectionPoint[statics.size()]);
+        provisions = provided.toArray(new Provision[provided.size()]);
+        initializer = Initializer.class.isAssignableFrom(c);
+        asyncInitializer = AsyncInitializer.class.isAssignableFrom(c);
+    }
+
+    static void setIndex(RegistryIndex index) {
+        InjectionPlan.index = index;
+        clear();
+    }
+
+    static synchronized void addIndex(RegistryIndex more) {
+        RegistryIndex current = index;
+        index = (current == null) ? more : current.merge(more);
+    }
+
+    private static Class load(String name, Class c) throws ClassNotFoundException {
+        return Class.forName(name, false, c.getClassLoader());
+    }
+
+    private static Constructor indexedConstructor(Class<?> c, RegistryIndex.Entry e)
+            throws ClassNotFoundException, NoSuchMethodException {
+        if (c.isInterface())
+            return null;
+        Constructor con;
+        if (e.constructor != null) {
+            con = c.getConstructor(typesOf(e.constructor, c));
+        } else {
+            try {
+                con = c.getDeclaredConstructor();
+            } catch (NoSuchMethodException ex) {
+                return null;
+            }
+        }
+        con.trySetAccessible();
+        return con;
+    }
+
+    private static Class[] typesOf(String names, Class c) throws ClassNotFoundException {
+        return typesOf(names.isEmpty() ? new String[0] : names.split(","), c);
+    }
+
+    private static Class[] typesOf(String[] names, Class c) throws ClassNotFoundException {
+        Class[] types = new Class[names.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = typeOf(names[i], c);
+        return types;
+    }
+
+    private static Class typeOf(String name, Class c) throws ClassNotFoundException {
+        if (name.endsWith("[]"))
+            return java.lang.reflect.Array.newInstance(typeOf(name.substring(0, name.length() - 2), c), 0).getClass();
+        switch (name) {
+        case "void": return void.class;
+        case "boolean": return boolean.class;
+        case "byte": return byte.class;
+        case "char": return char.class;
+        case "short": return short.class;
+        case "int": return int.class;
+        case "long": return long.class;
+        case "float": return float.class;
+        case "double": return double.class;
+        default: return load(name, c);
+        }
+    }
+
+    static InjectionPlan of(Class c) throws ReflectiveOperationException {
+        lookups.increment();
+        try {
+            return plans.get(c);
+        } catch (PlanException e) {
+            throw e.cause;
+        }
+    }
+
+    static long getHits() {
+        return lookups.sum() - misses.sum();
+    }
+
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    static void clear() {
+        plans = new Plans();
+        lookups.reset();
+        misses.reset();
+    }
+
+    private static class Plans extends ClassValue<InjectionPlan> {
+        protected InjectionPlan computeValue(Class<?> c) {
+            misses.increment();
+            try {
+                return new InjectionPlan(c, index);
+            } catch (ReflectiveOperationException e) {
+                throw new PlanException(e);
+            }
+        }
+    }
+
+    private static class PlanException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final ReflectiveOperationException cause;
+
+        PlanException(ReflectiveOperationException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+
+    private static Class findScope(AnnotatedElement c) {
+        for (java.lang.annotation.Annotation a : c.getAnnotations()) {
+            Class type = a.annotationType();
+            if (type != Singleton.class && type.isAnnotationPresent(Scope.class))
+                return type;
+        }
+        return null;
+    }
+
+    private static Constructor findConstructor(Class<?> c) {
+        if (c.isInterface())
+            return null;
+        Constructor con = null;
+        for (Constructor<?> ic : c.getConstructors()) {
+            if (ic.getAnnotation(Inject.class) != null) {
+                con = ic;
+                break;
+            }
+        }
+        if (con == null) {
+            try {
+                con = c.getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+        con.trySetAccessible();
+        return con;
+    }
+
+    Object newInstance(Object[] args) throws Exception {
+        if (constructor == null)
+            throw new NoSuchMethodException(type.getName() + ".<init>()");
+        return constructor.newInstance(args);
+    }
+
+    Object newInstance(Object[] args, Object[] values) throws Exception {
+        if (constructor == null)
+            throw new NoSuchMethodException(type.getName() + ".<init>()");
+        MethodHandle h = factory;
+        if (h == null)
+            factory = h = compileFactory();
+        try {
+            return (Object)h.invokeExact(args, values);
+        } catch (Throwable t) {
+            throw asException(t);
+        }
+    }
+
+    private MethodHandle compileFactory() throws IllegalAccessException {
+        MethodHandle create = MethodHandles.lookup().unreflectConstructor(constructor).asFixedArity()
+                .asSpreader(Object[].class, parameterTypes.length)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+        MethodHandle h = MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, Object[].class);
+        MethodHandle element = MethodHandles.arrayElementGetter(Object[].class);
+        for (int i = fields.length - 1; i >= 0; i--) {
+            MethodHandle set = MethodHandles.filterArguments(fields[i].setter(), 1,
+                    MethodHandles.insertArguments(element, 1, i));
+            h = MethodHandles.foldArguments(h, set);
+        }
+        return MethodHandles.filterArguments(h, 0, create);
+    }
+
+    private static MethodHandles.Lookup lookupIn(Class c) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+    }
+
+    private static Exception asException(Throwable t) {
+        if (t instanceof Error)
+            throw (Error)t;
+        if (t instanceof Exception)
+            return (Exception)t;
+        return new InvocationTargetException(t);
+    }
+
+    static class Dependency {
+        final Class type;
+        final String name;
+        final Class target;
+        final boolean provider;
+        final boolean lazy;
+
+        Dependency(Class type, Type genericType, String name, boolean lazy) {
+            this.type = type;
+            this.name = name;
+            this.lazy = lazy;
+            provider = (type == Provider.class);
+            target = provider ? providedType(genericType) : type;
+        }
+
+        Dependency(Class type, String name, boolean lazy, Class target) {
+            this.type = type;
+            this.name = name;
+            this.lazy = lazy;
+            provider = (type == Provider.class);
+            this.target = provider ? target : type;
+        }
+
+        boolean isDeferred() {
+            return provider || lazy;
+        }
+
+        private static Class providedType(Type t) {
+            if (!(t instanceof ParameterizedType))
+                return Object.class;
+            Type arg = ((ParameterizedType)t).getActualTypeArguments()[0];
+            if (arg instanceof ParameterizedType)
+                arg = ((ParameterizedType)arg).getRawType();
+            return (arg instanceof Class) ? (Class)arg : Object.class;
+        }
+    }
+
+    static class InjectionPoint extends Dependency {
+        final Field field;
+        final Class owner;
+        final String fieldName;
+        final boolean isStatic;
+        private MethodHandle setter;
+
+        InjectionPoint(Field f) {
+            super(f.getType(), f.getGenericType(), getResName(f), f.isAnnotationPresent(Lazy.class));
+            field = f;
+            owner = f.getDeclaringClass();
+            fieldName = f.getName();
+            isStatic = Modifier.isStatic(f.getModifiers());
+            f.setAccessible(true);
+        }
+
+        InjectionPoint(Class owner, String fieldName, Class type, Class target, boolean isStatic, String name, boolean lazy)
+                throws ReflectiveOperationException {
+            super(type, name, lazy, target);
+            field = null;
+            this.owner = owner;
+            this.fieldName = fieldName;
+            this.isStatic = isStatic;
+            MethodHandles.Lookup lookup = lookupIn(owner);
+            setter = adapt(isStatic ? lookup.findStaticSetter(owner, fieldName, type) : lookup.findSetter(owner, fieldName, type));
+        }
+
+        void set(Object o, Object value, FactoryMode mode) throws Exception {
+            if (mode != FactoryMode.METHOD_HANDLES && field != null) {
+                field.set(o, value);
+                return;
+            }
+            try {
+                setter().invokeExact(o, value);
+            } catch (Throwable t) {
+                throw asException(t);
+            }
+        }
+
+        MethodHandle setter() throws IllegalAccessException {
+            MethodHandle h = setter;
+            if (h == null)
+                setter = h = compileSetter();
+            return h;
+        }
+
+        private MethodHandle compileSetter() throws IllegalAccessException {
+            return adapt(MethodHandles.lookup().unreflectSetter(field));
+        }
+
+        private MethodHandle adapt(MethodHandle h) {
+            if (isStatic)
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            return h.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }
+
+        static String getResName(Field f) {
+            return InjectionPlan.getResName(f.getAnnotation(Named.class), f.getName());
+        }
+    }
+
+    private static String getResName(Named named, String defaultName) {
+        if (named == null)
+            return null;
+        return named.value().equals("") ? defaultName : named.value();
+    }
+
+    static class Callback {
+        final Class owner;
+        final String name;
+        final Class returnType;
+        private final MethodHandle handle;
+
+        Callback(Method m) throws IllegalAccessException {
+            this(m.getDeclaringClass(), m.getName(), m.getReturnType(), unreflect(m));
+        }
+
+        Callback(Class owner, String name, Class returnType) throws ReflectiveOperationException {
+            this(owner, name, returnType, lookupIn(owner).findVirtual(owner, name, MethodType.methodType(returnType)));
+        }
+
+        private Callback(Class owner, String name, Class returnType, MethodHandle h) {
+            this.owner = owner;
+            this.name = name;
+            this.returnType = returnType;
+            handle = h.asType(MethodType.methodType(void.class, Object.class));
+        }
+
+        private static MethodHandle unreflect(Method m) throws IllegalAccessException {
+            m.setAccessible(true);
+            return MethodHandles.lookup().unreflect(m);
+        }
+
+        void invoke(Object o) throws Exception {
+            try {
+                handle.invokeExact(o);
+            } catch (Throwable t) {
+                throw asException(t);
+            }
+        }
+    }
+
+    static class Provision {
+        final String fieldName;
+        final Class fieldType;
+        final boolean isStatic;
+        final Method method;
+        final Dependency[] parameters;
+        final String name;
+        final Class scope;
+        private final MethodHandle getter;
+
+        Provision(Field field, String name) throws IllegalAccessException {
+            this.fieldName = field.getName();
+            this.fieldType = field.getType();
+            this.isStatic = Modifier.isStatic(field.getModifiers());
+            this.method = null;
+            this.parameters = null;
+            this.name = name;
+            this.scope = null;
+            field.setAccessible(true);
+            getter = adapt(MethodHandles.lookup().unreflectGetter(field), isStatic);
+        }
+
+        Provision(Class owner, String fieldName, Class type, boolean isStatic, String name) throws ReflectiveOperationException {
+            this.fieldName = fieldName;
+            this.fieldType = type;
+            this.isStatic = isStatic;
+            this.method = null;
+            this.parameters = null;
+            this.name = name;
+            this.scope = null;
+            MethodHandles.Lookup lookup = lookupIn(owner);
+            getter = adapt(isStatic ? lookup.findStaticGetter(owner, fieldName, type) : lookup.findGetter(owner, fieldName, type),
+                    isStatic);
+        }
+
+        private static MethodHandle adapt(MethodHandle h, boolean isStatic) {
+            if (isStatic)
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            return h.asType(MethodType.methodType(Object.class, Object.class));
+        }
+
+        Object get(Object instance) throws Exception {
+            try {
+                return (Object)getter.invokeExact(instance);
+            } catch (Throwable t) {
+                throw asException(t);
+            }
+        }
+
+        Provision(Method method, String name) {
+            this.fieldName = null;
+            this.fieldType = null;
+            this.isStatic = Modifier.isStatic(method.getModifiers());
+            this.method = method;
+            this.name = name;
+            this.scope = findScope(method);
+            Parameter[] ps = method.getParameters();
+            parameters = new Dependency[ps.length];
+            for (int i = 0; i < ps.length; i++)
+                parameters[i] = new Dependency(ps[i].getType(), ps[i].getParameterizedType(),
+                        getResName(ps[i].getAnnotation(Named.class), ""), ps[i].isAnnotationPresent(Lazy.class));
+            method.setAccessible(true);
+            getter = null;
+        }
+    }
+}
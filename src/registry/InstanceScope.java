@@ -0,0 +1,5 @@
+package registry;
+
+public interface InstanceScope {
+    public <T> T getInstance(Class<T> c, RegistryInstanceBuilder<T> builder) throws Exception;
+}
@@ -0,0 +1,71 @@
+package registry;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+import javax.inject.Provider;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class LazyProxy implements InvocationHandler {
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final ClassValue<ConcurrentMap<Method, MethodHandle>> HANDLES =
+            new ClassValue<ConcurrentMap<Method, MethodHandle>>() {
+                protected ConcurrentMap<Method, MethodHandle> computeValue(Class<?> c) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    private final Class type;
+    private final Provider provider;
+    private volatile Object target;
+
+    private LazyProxy(Class type, Provider provider) {
+        this.type = type;
+        this.provider = provider;
+    }
+
+    static Object create(Registry registry, Class type, String name) throws RegistryException {
+        if (!type.isInterface())
+            throw new RegistryException("@Lazy requires an interface type: " + type.getName());
+        LazyProxy handler = new LazyProxy(type, new RegistryProvider(registry, type, name));
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type }, handler);
+    }
+
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        if (m.getDeclaringClass() == Object.class) {
+            switch (m.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "lazy " + type.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+        }
+        Object o = target;
+        if (o == null) {
+            synchronized (this) {
+                o = target;
+                if (o == null)
+                    target = o = provider.get();
+            }
+        }
+        Object[] a = (args == null) ? NO_ARGS : args;
+        return (Object)handle(m).invokeExact(o, a);
+    }
+
+    private static MethodHandle handle(Method m) throws IllegalAccessException {
+        ConcurrentMap<Method, MethodHandle> handles = HANDLES.get(m.getDeclaringClass());
+        MethodHandle h = handles.get(m);
+        if (h == null) {
+            m.setAccessible(true);
+            h = MethodHandles.lookup().unreflect(m)
+                    .asFixedArity()
+                    .asSpreader(Object[].class, m.getParameterCount())
+                    .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+            handles.putIfAbsent(m, h);
+        }
+        return h;
+    }
+}
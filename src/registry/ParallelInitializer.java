@@ -0,0 +1,184 @@
+package registry;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import registry.InjectionPlan.Dependency;
+import registry.InjectionPlan.InjectionPoint;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ParallelInitializer {
+    private final Registry registry;
+    private final Executor executor;
+    private final Map<Class, Node> nodes = new LinkedHashMap<>();
+    private final Map<Class<?>, Long> initTimes = new ConcurrentHashMap<>();
+    private CountDownLatch done;
+    private AtomicInteger inFlight;
+    private volatile Exception failure;
+
+    public ParallelInitializer(Registry registry, Executor executor) {
+        this.registry = registry;
+        this.executor = executor;
+    }
+
+    public void addInitializer(Class c) throws Exception {
+        node(c).initializer = true;
+    }
+
+    public Map<Class<?>, Long> run() throws Exception {
+        if (nodes.isEmpty())
+            return initTimes;
+        checkCycles();
+        List<Node> batch = new ArrayList<>(nodes.values());
+        nodes.clear();
+        done = new CountDownLatch(1);
+        inFlight = new AtomicInteger(1);
+        for (Node n : batch)
+            if (n.pending.get() == 0)
+                submit(n);
+        finished();
+        done.await();
+        if (failure != null)
+            throw failure;
+        return initTimes;
+    }
+
+    public Map<Class<?>, Long> getInitTimes() {
+        return initTimes;
+    }
+
+    private Node node(Class c) throws Exception {
+        Node n = nodes.get(c);
+        if (n != null)
+            return n;
+        n = new Node(c);
+        nodes.put(c, n);
+        Set<Node> dependencies = new LinkedHashSet<>();
+        collectDependencies(c, dependencies, new HashSet<Class>());
+        dependencies.remove(n);
+        for (Node d : dependencies)
+            d.dependents.add(n);
+        n.pending.set(dependencies.size());
+        return n;
+    }
+
+    private void collectDependencies(Class c, Set<Node> dependencies, Set<Class> visited) throws Exception {
+        if (!visited.add(c))
+            return;
+        InjectionPlan plan = InjectionPlan.of(c);
+        for (Dependency d : plan.parameters)
+            if (!d.isDeferred())
+                addDependency(d.type, dependencies, visited);
+        for (InjectionPoint ip : plan.fields)
+            if (ip.name == null && !ip.isDeferred())
+                addDependency(ip.type, dependencies, visited);
+    }
+
+    private void addDependency(Class type, Set<Node> dependencies, Set<Class> visited) throws Exception {
+        if (registry.getBinding(type) != null)
+            return;
+        if (type.isInterface()) {
+            type = InjectionPlan.of(type).defaultImplementation;
+            if (type == null || registry.getBinding(type) != null)
+                return;
+        }
+        if (InjectionPlan.of(type).singleton)
+            dependencies.add(node(type));
+        else
+            collectDependencies(type, dependencies, visited);
+    }
+
+    private void checkCycles() throws RegistryException {
+        Map<Node, Integer> pending = new HashMap<>();
+        Deque<Node> ready = new ArrayDeque<>();
+        for (Node n : nodes.values()) {
+            pending.put(n, n.pending.get());
+            if (n.pending.get() == 0)
+                ready.add(n);
+        }
+        int count = 0;
+        while (!ready.isEmpty()) {
+            Node n = ready.poll();
+            count++;
+            for (Node d : n.dependents) {
+                int p = pending.get(d) - 1;
+                pending.put(d, p);
+                if (p == 0)
+                    ready.add(d);
+            }
+        }
+        if (count < nodes.size()) {
+            StringBuilder sb = new StringBuilder("Dependency cycle between:");
+            for (Map.Entry<Node, Integer> e : pending.entrySet())
+                if (e.getValue() > 0)
+                    sb.append(' ').append(e.getKey().type.getName());
+            throw new RegistryException(sb.toString());
+        }
+    }
+
+    private void submit(final Node n) {
+        if (failure != null)
+            return;
+        inFlight.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        execute(n);
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(e);
+            finished();
+        }
+    }
+
+    private void finished() {
+        if (inFlight.decrementAndGet() == 0)
+            done.countDown();
+    }
+
+    private void execute(Node n) {
+        if (failure != null)
+            return;
+        long start = System.nanoTime();
+        try {
+            if (n.initializer) {
+                registry.init(n.type, registry.registerProvider(n.type));
+            } else {
+                registry.getInstance(n.type);
+            }
+        } catch (Exception e) {
+            fail(e);
+            return;
+        } catch (Throwable t) {
+            fail(new RegistryException(n.type.getName() + " failed to initialize: " + t));
+            return;
+        }
+        initTimes.put(n.type, System.nanoTime() - start);
+
+        for (Node d : n.dependents)
+            if (d.pending.decrementAndGet() == 0)
+                submit(d);
+    }
+
+    private synchronized void fail(Exception e) {
+        if (failure == null)
+            failure = e;
+    }
+
+    private static class Node {
+        final Class type;
+        final List<Node> dependents = new ArrayList<>();
+        final AtomicInteger pending = new AtomicInteger();
+        boolean initializer;
+
+        Node(Class type) {
+            this.type = type;
+        }
+    }
+}
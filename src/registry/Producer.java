@@ -0,0 +1,82 @@
+package registry;
+
+import java.lang.reflect.*;
+import java.util.Set;
+
+import registry.InjectionPlan.Dependency;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class Producer {
+    final Registry registry;
+    final Object owner;
+    final InjectionPlan.Provision provision;
+    private Object value;
+    private volatile boolean produced;
+
+    Producer(Registry registry, Object owner, InjectionPlan.Provision provision) {
+        this.registry = registry;
+        this.owner = owner;
+        this.provision = provision;
+    }
+
+    Class type() {
+        return provision.method.getReturnType();
+    }
+
+    Object get() throws Exception {
+        if (provision != null && provision.scope != null) {
+            InstanceScope scope = registry.getScope(provision.scope);
+            if (scope == null)
+                throw new RegistryException("No scope registered for @" + provision.scope.getName() +
+                        " on " + provision.method);
+            return scope.getInstance(provision.method.getReturnType(), new RegistryInstanceBuilder() {
+                public Object createInstance() throws Exception {
+                    return invoke();
+                }
+            });
+        }
+        if (!produced) {
+            synchronized (this) {
+                if (!produced) {
+                    value = invoke();
+                    produced = true;
+                    if (value != null)
+                        track(value);
+                }
+            }
+        }
+        return value;
+    }
+
+    void track(Object value) throws Exception {
+        registry.track(value, owner, provision.parameters);
+    }
+
+    Object produced() {
+        return produced ? value : null;
+    }
+
+    synchronized void discard(Set<Object> disposed) {
+        if (produced && disposed.contains(value)) {
+            value = null;
+            produced = false;
+        }
+    }
+
+    Object invoke() throws Exception {
+        Dependency[] parameters = provision.parameters;
+        Object[] args = registry.getArguments(parameters);
+        for (int i = 0; i < args.length; i++)
+            if (args[i] == null)
+                throw new RegistryException(provision.method + " has unsatisfied dependency: " +
+                        (parameters[i].name != null ? "key " + parameters[i].name : parameters[i].type.getName()));
+        try {
+            return provision.method.invoke(owner, args);
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception)
+                throw (Exception)t;
+            throw e;
+        }
+    }
+}
@@ -1,172 +1,792 @@
 package registry;
 
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import javax.inject.*;
 
+import registry.InjectionPlan.Dependency;
+import registry.InjectionPlan.InjectionPoint;
+
 @SuppressWarnings({"rawtypes", "unchecked"})
-public class Registry {
+public class Registry implements AutoCloseable {
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    
     private Registry parent;
-    private Map<String, Object> namedInstanceMap = new HashMap<>();
-    private Map<Class, Object> classMap = new HashMap<>();
+    private Bindings bindings;
+    private volatile Map<Class, Object> singletonLocks;
+    private volatile Map<Class, InstanceScope> scopes;
+    private volatile Map<String, TypedValue> typedValues;
+    private volatile Map<Class, CompletableFuture<?>> readiness;
+    private FactoryMode factoryMode = FactoryMode.REFLECTION;
+    private volatile RegistryListener listener;
+    private volatile Set<Class> staticsInjected;
+    private volatile Disposal disposal;
+    private volatile Queue<WeakReference<Registry>> forks;
+    private volatile boolean attached;
+    private final ReadWriteLock reloadLock;
+    private volatile Set<Class> planned;
     
-    public Registry() {}
+    public Registry() {
+        bindings = new Bindings(null);
+        scopes = defaultScopes();
+        reloadLock = new ReentrantReadWriteLock();
+    }
     
     public Registry(Registry parent) {
         this.parent = parent;
+        this.factoryMode = parent.factoryMode;
+        this.listener = parent.listener;
+        bindings = new Bindings(parent.bindings);
+        reloadLock = parent.reloadLock;
+    }
+    
+    private static Map<Class, InstanceScope> defaultScopes() {
+        Map<Class, InstanceScope> m = new ConcurrentHashMap<>();
+        m.put(ThreadScoped.class, new ThreadScope());
+        m.put(RequestScoped.class, new RequestScope());
+        return m;
+    }
+    
+    public Registry getParent() {
+        return parent;
+    }
+    
+    public Registry fork() {
+        return new Registry(this);
+    }
+    
+    public void close() throws RegistryException {
+        dispose();
+    }
+    
+    public void dispose() throws RegistryException {
+        dispose(Disposal.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public void dispose(long timeout, TimeUnit unit) throws RegistryException {
+        List<Exception> failures = new ArrayList<>();
+        for (Registry fork : detachForks()) {
+            try {
+                fork.dispose(timeout, unit);
+            } catch (RegistryException e) {
+                failures.add(e);
+            }
+        }
+        Disposal d = disposal;
+        if (d != null)
+            unbind(d.dispose(timeout, unit, failures));
+        if (!failures.isEmpty())
+            throw Disposal.failure(failures);
+    }
+    
+    private void unbind(List<Object> all) {
+        Set<Object> disposed = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        disposed.addAll(all);
+        for (Map.Entry<Object, Object> e : bindings.snapshot().entrySet()) {
+            Object o = e.getValue();
+            if (o instanceof Producer)
+                ((Producer)o).discard(disposed);
+            else if (disposed.contains(o))
+                bindings.remove(e.getKey());
+        }
+    }
+    
+    public void reset() throws RegistryException {
+        try {
+            dispose();
+        } finally {
+            bindings.clear();
+            singletonLocks = null;
+            typedValues = null;
+            staticsInjected = null;
+            readiness = null;
+            if (parent == null) {
+                scopes = defaultScopes();
+            } else {
+                scopes = null;
+                factoryMode = parent.factoryMode;
+                setListener(parent.listener);
+            }
+        }
+    }
+    
+    public FactoryMode getFactoryMode() {
+        return factoryMode;
+    }
+    
+    public void setFactoryMode(FactoryMode factoryMode) {
+        this.factoryMode = factoryMode;
+    }
+    
+    public RegistryListener getListener() {
+        return listener;
+    }
+    
+    public void setListener(RegistryListener listener) {
+        this.listener = listener;
+        Disposal d = disposal;
+        if (d != null)
+            d.setListener(listener);
     }
     
     public Object getInstance(String key) throws Exception {
-        Object instance = namedInstanceMap.get(key);
-        if (instance != null)
-            return instance;
-        if (parent != null)
-            return parent.getInstance(key);
-        return null;
+        RegistryListener l = listener;
+        if (l == null) {
+            Object o = bindings.get(key);
+            return (o instanceof Producer) ? ((Producer)o).get() : o;
+        }
+        
+        long start = System.nanoTime();
+        if (parent != null && !bindings.shadows(key))
+            l.parentLookup(key);
+        Object o = bindings.get(key);
+        if (o instanceof Producer)
+            o = ((Producer)o).get();
+        l.keyResolved(key, System.nanoTime() - start, o != null);
+        return o;
     }
     
-    private <T> T getExistingInstance(Class<T> c) throws Exception {
-        T o = (T)classMap.get(c);
-        if (o != null) 
-            return o;
-        return (parent == null) ? null :
-            parent.getExistingInstance(c);
+    void recordPlans(Set<Class> planned) {
+        this.planned = planned;
+    }
+    
+    private InjectionPlan planOf(Class c) throws ReflectiveOperationException {
+        Set<Class> s = planned;
+        if (s != null)
+            s.add(c);
+        return InjectionPlan.of(c);
+    }
+    
+    Object getBinding(Class c) {
+        return bindings.get(c);
+    }
+    
+    Object getBinding(String key) {
+        return bindings.get(key);
+    }
+    
+    <T> T getExistingInstance(Class<T> c) throws Exception {
+        Object o = bindings.get(c);
+        return (o instanceof Producer) ? (T)((Producer)o).get() : (T)o;
     }
     
     public <T> T getInstance(Class<T> c) throws Exception {
+        RegistryListener l = listener;
+        if (l == null) {
+            T o = getExistingInstance(c);
+            if (o == null)            
+                   o = createInstance(c);
+            return o;
+        }
+        
+        long start = System.nanoTime();
+        if (parent != null && !bindings.shadows(c))
+            l.parentLookup(c);
         T o = getExistingInstance(c);
-        if (o == null)            
-               o = createInstance(c);
+        if (o == null)
+            o = createInstance(c);
+        l.classResolved(c, System.nanoTime() - start);
         return o;
     }
     
     public static void decorateStatic() {
-        Registry registry = RegistryBuilder.getRegistry();
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        try {
-            String className = stackTrace[2].getClassName();
-            Class c = Class.forName(className);
-            registry.decorateInstance(null, c);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        decorateStatic(WALKER.getCallerClass());
     }
 
     public static void decorateStatic(Class c) {
         Registry registry = RegistryBuilder.getRegistry();
         try {
-            registry.decorateInstance(null, c);
+            registry.injectStatics(c);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
     
+    public void injectStatics(Class... classes) throws Exception {
+        Set<Class> done = staticsInjected;
+        if (done == null) {
+            synchronized (this) {
+                done = staticsInjected;
+                if (done == null)
+                    staticsInjected = done = Collections.newSetFromMap(
+                            Collections.synchronizedMap(new WeakHashMap<Class, Boolean>()));
+            }
+        }
+        for (Class c : classes) {
+            if (done.contains(c))
+                continue;
+            synchronized (done) {
+                if (done.contains(c))
+                    continue;
+                decorateInstance(null, c);
+                done.add(c);
+            }
+        }
+    }
+    
     public void decorateInstance(Object o) throws Exception {
         decorateInstance(o, o.getClass());
     }
 
     private void decorateInstance(Object o, Class c) throws Exception {
-        for (Field f : c.getDeclaredFields()) 
-            if (f.getAnnotation(Inject.class) != null)
-                injectFieldValue(o, f);
-        
-        c = c.getSuperclass();
-        if (c != null)
-            decorateInstance(o, c);
+        decorateInstance(o, planOf(c));
+    }
+
+    private void decorateInstance(Object o, InjectionPlan plan) throws Exception {
+        RegistryListener l = listener;
+        long start = (l != null) ? System.nanoTime() : 0;
+        for (InjectionPoint ip : (o == null) ? plan.staticFields : plan.fields)
+            ip.set(o, fieldValue(plan.type, ip), factoryMode);
+        if (l != null)
+            l.instanceDecorated(plan.type, System.nanoTime() - start);
     }
     
-    private void injectFieldValue(Object o, Field f) throws Exception {
-        String name = getResName(f);        
-        Object value = (name != null) ? 
-                getInstance(name) :
-                getInstance(f.getType());
+    private Object fieldValue(Class c, InjectionPoint ip) throws Exception {
+        String name = ip.name;
+        if (name != null && ip.type.isPrimitive()) {
+            TypedValue v = getTypedValue(name);
+            if (v == null)
+                throw new RegistryException(c.getName() + " has unsatisfied dependency:  key " + name);
+            return v.as(ip.type);
+        }
+        Object value = resolve(ip);
 
         if (value == null) {
-            String msg = o.getClass().getName() + " has unsatisfied dependency: " +
-                            (name.equals("") ?
-                                f.getType() + " " + f.getName() : 
+            String msg = c.getName() + " has unsatisfied dependency: " +
+                            (name == null ?
+                                ip.type + " " + ip.fieldName : 
                                 " key " + name);
             throw new RegistryException(msg);
         } 
-        if (!f.getType().isAssignableFrom(value.getClass())) {
-            String msg = o.getClass().getName() + " has unsatisfied dependency: class " + 
-                    f.getType() + " where class " + value.getClass() + " was found";
+        if (!ip.type.isAssignableFrom(value.getClass())) {
+            String msg = c.getName() + " has unsatisfied dependency: class " + 
+                    ip.type + " where class " + value.getClass() + " was found";
             throw new RegistryException(msg);
         }
-        
-        f.setAccessible(true);
-        f.set(o, value);
+        return value;
     }
-
-    private static String getResName(Field f) {
-        Named named = f.getAnnotation(Named.class);
-        if (named == null) 
+    
+    private Object resolve(Dependency d) throws Exception {
+        if (d.provider)
+            return new RegistryProvider(this, d.target, d.name);
+        if (d.lazy)
+            return LazyProxy.create(this, d.target, d.name);
+        if (d.type.isPrimitive()) {
+            TypedValue v = (d.name != null) ? getTypedValue(d.name) : null;
+            return (v == null) ? null : v.as(d.type);
+        }
+        if (d.name != null && d.type == Duration.class)
+            return getDuration(d.name);
+        return (d.name != null) ? 
+                getInstance(d.name) :
+                getInstance(d.type);
+    }
+    
+    TypedValue getTypedValue(String key) throws Exception {
+        Object raw = getInstance(key);
+        if (raw == null)
             return null;
-
-        String name = named.value();
-           if (name.equals(""))
-               name = f.getName();
-        return name;
+        Registry owner = this;
+        while (owner.parent != null && !owner.bindings.shadows(key))
+            owner = owner.parent;
+        return owner.getTypedValue(key, raw);
+    }
+    
+    private TypedValue getTypedValue(String key, Object raw) {
+        Map<String, TypedValue> m = typedValues;
+        if (m == null) {
+            synchronized (this) {
+                m = typedValues;
+                if (m == null)
+                    typedValues = m = new ConcurrentHashMap<>();
+            }
+        }
+        TypedValue v = m.get(key);
+        if (v == null || v.raw != raw) {
+            v = new TypedValue(key, raw);
+            m.put(key, v);
+        }
+        return v;
+    }
+    
+    private TypedValue requireTypedValue(String key) throws Exception {
+        TypedValue v = getTypedValue(key);
+        if (v == null)
+            throw new RegistryException("No value for key " + key);
+        return v;
     }
     
-    private Object[] getConstructorArguments(Class[] params) throws Exception {
+    public long getLong(String key) throws Exception {
+        return requireTypedValue(key).asLong();
+    }
+    
+    public int getInt(String key) throws Exception {
+        return requireTypedValue(key).asInt();
+    }
+    
+    public double getDouble(String key) throws Exception {
+        return requireTypedValue(key).asDouble();
+    }
+    
+    public boolean getBoolean(String key) throws Exception {
+        return requireTypedValue(key).asBoolean();
+    }
+    
+    public Duration getDuration(String key) throws Exception {
+        TypedValue v = getTypedValue(key);
+        return (v == null) ? null : v.asDuration();
+    }
+    
+    Object[] getArguments(Dependency[] params) throws Exception {
         Object[] result = new Object[params.length];
         for (int i = 0; i < params.length; i++) {
-            result[i] = getInstance(params[i]);
+            result[i] = resolve(params[i]);
         }
         return result;
     }
     
     private <T> T createInstance(Class<T> c) throws Exception {
+        InjectionPlan plan = planOf(c);
         if (c.isInterface()) {
-            Default da = c.getAnnotation(Default.class);
-            if (da == null)
+            if (plan.defaultImplementation == null)
                 throw new RegistryException("No default implementation for interface: " + c.getName());
-            c = (Class<T>)da.value();
+            c = plan.defaultImplementation;
+            plan = planOf(c);
+        }
+        if (plan.scope != null && !plan.singleton)
+            return createScopedInstance(c, plan);
+        if (!plan.singleton)
+            return (T)buildInstance(plan);
+        
+        if (parent == null)
+            return createSingleton(c, plan);
+        Lock lock = reloadLock.readLock();
+        lock.lock();
+        try {
+            return createSingleton(c, plan);
+        } finally {
+            lock.unlock();
         }
-        T o = (T)newInstance(c);      
-        decorateInstance(o, c);
-        if (o instanceof Initializer) {
+    }
+    
+    private <T> T createSingleton(Class<T> c, InjectionPlan plan) throws Exception {
+        synchronized (singletonLock(c)) {
+            T o = getExistingInstance(c);
+            if (o == null) {
+                o = (T)buildInstance(plan);
+                bindings.put(c, o);
+                attach();
+                track(o);
+            }
+            return o;
+        }
+    }
+    
+    private <T> T createScopedInstance(Class<T> c, final InjectionPlan plan) throws Exception {
+        InstanceScope scope = getScope(plan.scope);
+        if (scope == null)
+            throw new RegistryException("No scope registered for @" + plan.scope.getName() + " on " + c.getName());
+        return scope.getInstance(c, new RegistryInstanceBuilder<T>() {
+            public T createInstance() throws Exception {
+                return (T)buildInstance(plan);
+            }
+        });
+    }
+    
+    public void registerScope(Class<? extends Annotation> annotation, InstanceScope scope) throws RegistryException {
+        if (!annotation.isAnnotationPresent(Scope.class))
+            throw new RegistryException(annotation.getName() + " is not a scope annotation");
+        synchronized (this) {
+            if (scopes == null)
+                scopes = new ConcurrentHashMap<>();
+        }
+        scopes.put(annotation, scope);
+    }
+    
+    public InstanceScope getScope(Class<? extends Annotation> annotation) {
+        Map<Class, InstanceScope> m = scopes;
+        InstanceScope scope = (m == null) ? null : m.get(annotation);
+        if (scope == null && parent != null)
+            return parent.getScope(annotation);
+        return scope;
+    }
+    
+    private Object singletonLock(Class c) {
+        Map<Class, Object> locks = singletonLocks;
+        if (locks == null) {
+            synchronized (this) {
+                locks = singletonLocks;
+                if (locks == null)
+                    singletonLocks = locks = Collections.synchronizedMap(new WeakHashMap<Class, Object>());
+            }
+        }
+        synchronized (locks) {
+            Object lock = locks.get(c);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(c, lock);
+            }
+            return lock;
+        }
+    }
+    
+    private Object buildInstance(InjectionPlan plan) throws Exception {
+        RegistryListener l = listener;
+        long start = (l != null) ? System.nanoTime() : 0;
+        Object o = construct(plan);
+        if (plan.initializer) {
             Initializer i = (Initializer)o;
+            long initStart = (l != null) ? System.nanoTime() : 0;
             i.init();
+            if (l != null)
+                l.instanceInitialized(plan.type, System.nanoTime() - initStart);
+        }
+        if (plan.asyncInitializer) {
+            CompletableFuture<?> f = ((AsyncInitializer)o).initAsync();
+            if (plan.singleton)
+                ready(plan.type, f);
         }
-        if (isSingleton(c))
-            classMap.put(c, o);
+        if (l != null)
+            l.instanceCreated(plan.type, System.nanoTime() - start, plan.singleton);
         return o;
     }
     
-    private static boolean isSingleton(Class c) {
-        return c.getAnnotation(Singleton.class) != null;
+    void init(Class c, Object o) throws Exception {
+        if (o instanceof AsyncInitializer)
+            ready(c, ((AsyncInitializer)o).initAsync());
+        else
+            ((Initializer)o).init();
+    }
+    
+    private void ready(Class c, CompletableFuture<?> f) {
+        synchronized (this) {
+            if (readiness == null)
+                readiness = new ConcurrentHashMap<>();
+        }
+        readiness.put(c, (f != null) ? f : CompletableFuture.completedFuture(null));
+    }
+    
+    private CompletableFuture<?> getReadiness(Class c) {
+        Map<Class, CompletableFuture<?>> m = readiness;
+        CompletableFuture<?> f = (m == null) ? null : m.get(c);
+        if (f == null && parent != null)
+            return parent.getReadiness(c);
+        return f;
+    }
+    
+    public CompletableFuture<Void> whenReady(Class... components) throws Exception {
+        Set<Class> visited = new HashSet<>();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Class c : components)
+            collectReadiness(c, true, visited, futures);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+    
+    public void awaitReady(long timeout, TimeUnit unit, Class... components) throws Exception {
+        try {
+            whenReady(components).get(timeout, unit);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception)
+                throw (Exception)t;
+            throw e;
+        }
+    }
+    
+    private void collectReadiness(Class c, boolean create, Set<Class> visited, List<CompletableFuture<?>> futures) throws Exception {
+        InjectionPlan plan = planOf(c);
+        if (c.isInterface() && plan.defaultImplementation != null) {
+            c = plan.defaultImplementation;
+            plan = planOf(c);
+        }
+        if (!visited.add(c))
+            return;
+        CompletableFuture<?> f = getReadiness(c);
+        if (f == null && create && plan.singleton) {
+            getInstance(c);
+            f = getReadiness(c);
+        }
+        if (f != null)
+            futures.add(f);
+        for (Dependency d : plan.parameters)
+            if (!d.isDeferred() && d.name == null)
+                collectReadiness(d.type, false, visited, futures);
+        for (Dependency d : plan.fields)
+            if (!d.isDeferred() && d.name == null)
+                collectReadiness(d.type, false, visited, futures);
     }
 
-    private Object newInstance(Class<?> c) throws Exception {
-        for (Constructor<?> con : c.getConstructors()) {
-            if (con.getAnnotation(Inject.class) != null) {
-                Class[] params = con.getParameterTypes();
-                Object[] args = getConstructorArguments(params);
-                con.setAccessible(true);
-                return con.newInstance(args);
+    private Object construct(InjectionPlan plan) throws Exception {
+        if (factoryMode != FactoryMode.METHOD_HANDLES) {
+            Object o = newInstance(plan);
+            decorateInstance(o, plan);
+            return o;
+        }
+        Object[] args = getArguments(plan.parameters);
+        RegistryListener l = listener;
+        long start = (l != null) ? System.nanoTime() : 0;
+        Object[] values = new Object[plan.fields.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = fieldValue(plan.type, plan.fields[i]);
+        if (l != null)
+            l.instanceDecorated(plan.type, System.nanoTime() - start);
+        return plan.newInstance(args, values);
+    }
+    
+    private Object newInstance(InjectionPlan plan) throws Exception {
+        Object[] args = getArguments(plan.parameters);
+        return plan.newInstance(args);
+    }
+    
+    Object newInstance(Class c) throws Exception {
+        return newInstance(planOf(c));
+    }
+    
+    Object rebuild(Class c) throws Exception {
+        Object o = buildInstance(planOf(c));
+        bindings.put(c, o);
+        return o;
+    }
+    
+    private void attach() {
+        if (attached || parent == null)
+            return;
+        synchronized (this) {
+            if (attached)
+                return;
+            parent.attach();
+            parent.forks().add(new WeakReference<Registry>(this));
+            attached = true;
+        }
+    }
+    
+    private Queue<WeakReference<Registry>> forks() {
+        Queue<WeakReference<Registry>> q = forks;
+        if (q == null) {
+            synchronized (this) {
+                q = forks;
+                if (q == null)
+                    forks = q = new ConcurrentLinkedQueue<>();
+            }
+        }
+        return q;
+    }
+    
+    List<Registry> getForks() {
+        List<Registry> result = new ArrayList<>();
+        Queue<WeakReference<Registry>> q = forks;
+        if (q == null)
+            return result;
+        for (Iterator<WeakReference<Registry>> it = q.iterator(); it.hasNext();) {
+            Registry fork = it.next().get();
+            if (fork == null)
+                it.remove();
+            else
+                result.add(fork);
+        }
+        return result;
+    }
+    
+    private List<Registry> detachForks() {
+        List<Registry> result = new ArrayList<>();
+        Queue<WeakReference<Registry>> q = forks;
+        if (q == null)
+            return result;
+        for (WeakReference<Registry> ref = q.poll(); ref != null; ref = q.poll()) {
+            Registry fork = ref.get();
+            if (fork != null) {
+                fork.attached = false;
+                result.add(fork);
+            }
+        }
+        return result;
+    }
+    
+    ReadWriteLock getReloadLock() {
+        return reloadLock;
+    }
+    
+    Map<Class, Object> detachSingletons() {
+        Map<Class, Object> result = getSingletons();
+        Disposal d = disposal;
+        if (d != null)
+            for (Object o : result.values())
+                d.remove(o);
+        return result;
+    }
+    
+    Map<Object, Object> getBindings() {
+        Map<Object, Object> result = bindings.snapshot();
+        for (Object key : bindings.unresolvedKeys())
+            result.put(key, null);
+        return result;
+    }
+    
+    Map<Class, Object> getSingletons() {
+        Map<Class, Object> result = new HashMap<>();
+        for (Map.Entry<Object, Object> e : bindings.snapshot().entrySet())
+            if (e.getKey() instanceof Class)
+                result.put((Class)e.getKey(), e.getValue());
+        return result;
+    }
+    
+    void replace(Map<String, Object> named, Collection<String> removed, Map<Class, Object> singletons) throws Exception {
+        Map<Object, Object> old = bindings.snapshot();
+        Map<Object, Object> puts = new HashMap<Object, Object>(named);
+        puts.putAll(singletons);
+        bindings.replace(puts, new ArrayList<Object>(removed));
+        List<Object> stale = new ArrayList<>();
+        for (Map.Entry<Object, Object> e : puts.entrySet()) {
+            track(e.getValue());
+            stale.add(old.get(e.getKey()));
+        }
+        for (String key : removed)
+            stale.add(old.get(key));
+        released(stale);
+    }
+    
+    void track(Object o) throws Exception {
+        if (Disposal.isDisposable(o))
+            disposal().add(o, dependencies(o));
+    }
+    
+    void track(Object o, Object owner, Dependency[] parameters) throws Exception {
+        if (!Disposal.isDisposable(o))
+            return;
+        List<Object> result = new ArrayList<>();
+        if (owner != null && Disposal.isDisposable(owner))
+            result.add(owner);
+        Set<Class> visited = new HashSet<>();
+        for (Dependency d : parameters)
+            addDependency(d, o, result, visited);
+        disposal().add(o, result);
+    }
+    
+    private Disposal disposal() {
+        Disposal d = disposal;
+        if (d == null) {
+            synchronized (this) {
+                d = disposal;
+                if (d == null) {
+                    disposal = d = new Disposal(listener);
+                    if (parent != null)
+                        Disposal.register(this, d);
+                }
             }
         }
-        Constructor<?> defaultCon = c.getDeclaredConstructor();
-        defaultCon.setAccessible(true);
-        return defaultCon.newInstance();
+        attach();
+        return d;
+    }
+    
+    private List<Object> dependencies(Object o) throws Exception {
+        List<Object> result = new ArrayList<>();
+        addDependencies(o.getClass(), o, result, new HashSet<Class>());
+        return result;
+    }
+    
+    private void addDependencies(Class c, Object o, List<Object> result, Set<Class> visited) throws Exception {
+        if (!visited.add(c))
+            return;
+        InjectionPlan plan = planOf(c);
+        for (Dependency d : plan.parameters)
+            addDependency(d, o, result, visited);
+        for (Dependency d : plan.fields)
+            addDependency(d, o, result, visited);
+    }
+    
+    private void addDependency(Dependency d, Object o, List<Object> result, Set<Class> visited) throws Exception {
+        if (d.isDeferred() || d.type.isPrimitive())
+            return;
+        if (d.name != null) {
+            Object dep = bound(bindings.get(d.name));
+            if (dep != null && dep != o && Disposal.isDisposable(dep))
+                result.add(dep);
+            return;
+        }
+        Class type = d.type;
+        Object dep = bound(bindings.get(type));
+        if (dep == null && type.isInterface()) {
+            type = planOf(type).defaultImplementation;
+            if (type == null)
+                return;
+            dep = bound(bindings.get(type));
+        }
+        if (dep == null)
+            addDependencies(type, o, result, visited);
+        else if (dep != o && Disposal.isDisposable(dep))
+            result.add(dep);
+    }
+    
+    private static Object bound(Object o) {
+        return (o instanceof Producer) ? ((Producer)o).produced() : o;
+    }
+    
+    private void released(Object o) throws RegistryException {
+        released(Collections.singletonList(o));
+    }
+    
+    private void released(List<Object> all) throws RegistryException {
+        Disposal d = disposal;
+        if (d == null)
+            return;
+        List<Object> owned = new ArrayList<>();
+        for (Object o : all)
+            if (o != null && d.remove(o))
+                owned.add(o);
+        Disposal.disposeAll(owned);
+    }
+    
+    public List<Class<?>> validate(Class<?>... roots) throws Exception {
+        List<Class> all = new ArrayList<>();
+        for (Object key : bindings.unresolvedKeys())
+            if (key instanceof Class)
+                all.add((Class)key);
+        all.addAll(Arrays.asList(roots));
+        return new DependencyValidator(this).validate(all);
+    }
+    
+    public List<Class<?>> preinstantiate(Class<?>... roots) throws Exception {
+        List<Class<?>> order = validate(roots);
+        for (Class<?> c : order)
+            if (planOf(c).singleton)
+                getInstance(c);
+        return order;
+    }
+    
+    public static void setIndex(RegistryIndex index) {
+        InjectionPlan.setIndex(index);
+    }
+    
+    public static long getPlanCacheHits() {
+        return InjectionPlan.getHits();
+    }
+    
+    public static long getPlanCacheMisses() {
+        return InjectionPlan.getMisses();
     }
     
     public void registerImplementation(Class c) throws RegistryException {
-        if (classMap.containsKey(c))
+        if (!bindings.putIfAbsent(c, null))
             throw new RegistryException("Key class " + c.getName() + " duplicated");
-        classMap.put(c, null);
     }
     
     public void registerImplementation(String key, Class c) throws RegistryException {
-        if (namedInstanceMap.containsKey(key))
+        if (bindings.containsKey(key))
             throw new RegistryException("Key " + key + " duplicated");
         
         try {
-            Object instance = newInstance(c);
-            namedInstanceMap.put(key, instance);        
+            Object instance = newInstance(planOf(c));
+            if (!bindings.putIfAbsent(key, instance))
+                throw new RegistryException("Key " + key + " duplicated");
+            track(instance);
+        } catch (RegistryException e) {
+            throw e;
         } catch (Exception e) {
             throw new RegistryException(e.getMessage());
         }
@@ -176,72 +796,81 @@ public class Registry {
         if (key == null)
             throw new RegistryException("null key not allowed");
         
-        if (namedInstanceMap.containsKey(key))
+        if (!bindings.putIfAbsent(key, instance))
             throw new RegistryException("Key " + key + " duplicated");
-        
-        namedInstanceMap.put(key, instance);
     }    
 
     public void registerImplementation(Class c, Class subClass) throws Exception {
         if (c == null)
             throw new RegistryException("null key not allowed");
         
-        if (classMap.containsKey(c))
+        if (bindings.containsKey(c))
             throw new RegistryException("Key class " + c.getName() + " duplicated");
         
         Object o = getInstance(subClass);
-        classMap.put(c, o);
+        if (!bindings.putIfAbsent(c, o))
+            throw new RegistryException("Key class " + c.getName() + " duplicated");
     }    
 
     public void registerInstance(Class c, Object instance) throws RegistryException {
-        if (classMap.containsKey(c))
+        if (!bindings.putIfAbsent(c, instance))
             throw new RegistryException("Key class " + c.getName() + " duplicated");
-        
-        classMap.put(c, instance);
     }
     
     public void registerInstance(Object instance) throws RegistryException {
         Class c = instance.getClass();
-        if (classMap.containsKey(c))
+        if (!bindings.putIfAbsent(c, instance))
             throw new RegistryException("Key class " + c.getName() + " duplicated");
-        
-        classMap.put(c, instance);
     } 
     
     public void deregisterInstance(Object instance) throws RegistryException {
-        classMap.remove(instance.getClass());
+        released(bindings.remove(instance.getClass()));
     }  
     
     public void deregisterInstance(Class c) throws RegistryException {
-        classMap.remove(c);
+        released(bindings.remove(c));
     } 
     
     public void deregisterImplementation(Class c) throws RegistryException {
-        classMap.remove(c);
+        released(bindings.remove(c));
     } 
     
     public void removeImplementation(Class c) {
-        classMap.remove(c);
+        try {
+            released(bindings.remove(c));
+        } catch (RegistryException e) {
+            RegistryListener l = listener;
+            if (l == null)
+                throw new IllegalStateException(e.getMessage(), e);
+            l.disposalFailed(e);
+        }
     }
     
     public void removeInstance(String key) {
-        namedInstanceMap.remove(key);
+        bindings.remove(key);
     } 
     
     public <T> T registerProvider(Class<T> c) throws Exception {
+        InjectionPlan plan = planOf(c);
+        for (InjectionPlan.Provision p : plan.provisions)
+            if (p.method != null)
+                for (Dependency d : p.parameters)
+                    if (d.name != null && d.name.isEmpty())
+                        throw new RegistryException(p.method + " has a parameter with an empty @Named value");
         T instance = getInstance(c);
-        for (Field f : c.getDeclaredFields()) {
-            if (!f.isAnnotationPresent(Provides.class))
+        for (InjectionPlan.Provision p : plan.provisions) {
+            if (p.method != null) {
+                Producer producer = new Producer(this, Modifier.isStatic(p.method.getModifiers()) ? null : instance, p);
+                if (p.name != null)
+                    registerInstance(p.name, producer);
+                else
+                    registerInstance(p.method.getReturnType(), producer);
                 continue;
-            Named named = f.getAnnotation(Named.class);
-            f.setAccessible(true);
-            Object fieldValue = f.get(instance);
-            if (named != null) {
-                String name = named.value();
-                if (name.equals(""))
-                    name = f.getName();
-                   registerInstance(name, fieldValue);
-            } else 
+            }
+            Object fieldValue = p.get(instance);
+            if (p.name != null)
+                registerInstance(p.name, fieldValue);
+            else 
                 registerInstance(instance);
         }
         return instance;
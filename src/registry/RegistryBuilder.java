@@ -1,6 +1,8 @@
 package registry;
 
-import java.util.Properties;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Executor;
 
 
 public class RegistryBuilder {
@@ -11,6 +13,37 @@ public class RegistryBuilder {
         registry  = ir.getRegistry();
     }
     
+    public static void build(String configFile, Properties p, Executor initExecutor) throws Exception {
+        XMLRegistryBuilder ir = new XMLRegistryBuilder(configFile, p, initExecutor);
+        registry  = ir.getRegistry();
+    }
+    
+    public static void build(String configFile, Properties p, Executor initExecutor, Executor batchExecutor) throws Exception {
+        XMLRegistryBuilder ir = new XMLRegistryBuilder(configFile, p, initExecutor, batchExecutor);
+        registry  = ir.getRegistry();
+    }
+    
+    public static void build(List<String> configFiles, Properties p, Executor parseExecutor) throws Exception {
+        XMLRegistryBuilder ir = new XMLRegistryBuilder(configFiles, p, parseExecutor);
+        registry  = ir.getRegistry();
+    }
+    
+    public static void build(String configFile, Properties p, File snapshotFile) throws Exception {
+        XMLRegistryBuilder ir = new XMLRegistryBuilder(configFile, p, snapshotFile);
+        registry  = ir.getRegistry();
+    }
+    
+    public static void build(CompiledRegistry compiled, Properties p) throws Exception {
+        XMLRegistryBuilder ir = new XMLRegistryBuilder(p);
+        try {
+            compiled.configure(ir);
+            ir.flush();
+        } finally {
+            ir.finish();
+        }
+        registry  = ir.getRegistry();
+    }
+    
     public static Registry getRegistry() {
         if (registry == null)
             registry = new Registry();
@@ -0,0 +1,277 @@
+package registry;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import org.w3c.dom.*;
+
+import registry.InjectionPlan.Dependency;
+
+@SuppressWarnings("rawtypes")
+public class RegistryCompiler {
+    private static final int CHUNK_LINES = 1000;
+
+    private final String path;
+    private final String packageName;
+    private final String simpleName;
+    private final List<StringBuilder> chunks = new ArrayList<>();
+    private final Map<String, String> configurators = new HashMap<>();
+    private final Set<String> activeConfigurators = new HashSet<>();
+    private Set<String> serviceTags;
+    private StringBuilder chunk;
+    private int chunkLines;
+    private int elementCount;
+    private boolean documentDeclared;
+    private boolean registryDeclared;
+
+    public RegistryCompiler(String path, String className) {
+        this.path = path;
+        int dot = className.lastIndexOf('.');
+        packageName = (dot < 0) ? null : className.substring(0, dot);
+        simpleName = className.substring(dot + 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("usage: RegistryCompiler <config.xml> <class name> <source dir>");
+            System.exit(1);
+        }
+        new RegistryCompiler(args[0], args[1]).write(new File(args[2]));
+    }
+
+    public File write(File sourceDir) throws Exception {
+        File dir = (packageName == null) ? sourceDir :
+            new File(sourceDir, packageName.replace('.', File.separatorChar));
+        dir.mkdirs();
+        File f = new File(dir, simpleName + ".java");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+            w.write(generate());
+        }
+        return f;
+    }
+
+    public String generate() throws Exception {
+        chunks.clear();
+        configurators.clear();
+        activeConfigurators.clear();
+        chunk = null;
+        elementCount = 0;
+        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+        compileFile(docBuilder, new File(path), new ArrayList<File>());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by registry.RegistryCompiler from ").append(path).append(". Do not edit.\n");
+        if (packageName != null)
+            sb.append("package ").append(packageName).append(";\n");
+        sb.append("\npublic class ").append(simpleName).append(" implements registry.CompiledRegistry {\n");
+        sb.append("    public void configure(registry.XMLRegistryBuilder b) throws Exception {\n");
+        for (int i = 0; i < chunks.size(); i++)
+            sb.append("        configure").append(i).append("(b);\n");
+        sb.append("    }\n");
+        for (int i = 0; i < chunks.size(); i++) {
+            sb.append("\n    private void configure").append(i)
+              .append("(registry.XMLRegistryBuilder b) throws Exception {\n");
+            sb.append(chunks.get(i));
+            sb.append("    }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void compileFile(DocumentBuilder docBuilder, File f, List<File> including) throws Exception {
+        File canonical = f.getCanonicalFile();
+        if (including.contains(canonical))
+            throw new RegistryException("include cycle at " + f);
+        including.add(canonical);
+        Document doc = docBuilder.parse(f);
+        NodeList childNodes = doc.getDocumentElement().getChildNodes();
+        for (int i = 0; i < childNodes.getLength(); i++) {
+            Node n = childNodes.item(i);
+            if (n.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+            Element e = (Element)n;
+            if (e.getNodeName().equals("include")) {
+                compileFile(docBuilder, XMLRegistryBuilder.include(f, e.getAttribute("file")), including);
+                continue;
+            }
+            if (chunk == null || chunkLines >= CHUNK_LINES)
+                newChunk();
+            compileElement(e);
+        }
+        including.remove(canonical);
+    }
+
+    private void newChunk() {
+        chunk = new StringBuilder();
+        chunks.add(chunk);
+        chunkLines = 0;
+        documentDeclared = false;
+        registryDeclared = false;
+    }
+
+    private void line(String s) {
+        chunk.append("        ").append(s).append('\n');
+        chunkLines++;
+    }
+
+    private void compileElement(Element e) throws Exception {
+        String tag = e.getNodeName();
+
+        switch (tag) {
+        case "property":
+            line("b.property(" + str(e.getAttribute("name")) + ", " + str(e.getAttribute("value")) + ");");
+            break;
+        case "instance":
+            compileInstance(e);
+            break;
+        case "configurator":
+            configurators.put(e.getAttribute("tag"), e.getAttribute("class"));
+            break;
+        case "init":
+            line("b.init(" + classRef(load(e.getAttribute("class"))) + ");");
+            break;
+        default:
+            compileCustom(tag, e);
+        }
+    }
+
+    private void compileInstance(Element e) throws Exception {
+        String name = str(e.getAttribute("name"));
+        String className = e.getAttribute("class");
+        if (!className.equals("")) {
+            Class c = load(className);
+            String creation = construct(c);
+            if (creation == null) {
+                line("b.instance(" + name + ", " + classRef(c) + ");");
+                return;
+            }
+            if (!registryDeclared && creation.contains("r.getInstance(")) {
+                line("registry.Registry r = b.getRegistry();");
+                registryDeclared = true;
+            }
+            line("b.instance(" + name + ", " + classRef(c) + ", " + creation + ");");
+        } else {
+            String builder = e.getAttribute("builder");
+            if (builder.equals(""))
+                throw new RegistryException("no implementation for key" + e.getAttribute("name"));
+            line("b.builder(" + name + ", " + classRef(load(builder)) + ");");
+        }
+    }
+
+    private void compileCustom(String tag, Element e) throws Exception {
+        if (!activeConfigurators.contains(tag)) {
+            String className = configurators.get(tag);
+            if (className == null && !serviceTags().contains(tag))
+                throw new RegistryException("configuration element can not be processed: " + tag);
+            if (className != null)
+                line("b.activateConfigurator(" + str(tag) + ", " + classRef(load(className)) + ");");
+            activeConfigurators.add(tag);
+        }
+        String var = compileDom(e);
+        line("b.configure(" + str(tag) + ", " + var + ");");
+    }
+
+    private Set<String> serviceTags() {
+        if (serviceTags == null) {
+            serviceTags = new HashSet<>();
+            for (Configurator c : ServiceLoader.load(Configurator.class, Thread.currentThread().getContextClassLoader())) {
+                ConfiguratorTag tag = c.getClass().getAnnotation(ConfiguratorTag.class);
+                if (tag != null)
+                    serviceTags.add(tag.value());
+            }
+        }
+        return serviceTags;
+    }
+
+    private String compileDom(Element e) {
+        if (!documentDeclared) {
+            line("org.w3c.dom.Document doc = b.newDocument();");
+            documentDeclared = true;
+        }
+        String var = "e" + (++elementCount);
+        line("org.w3c.dom.Element " + var + " = doc.createElement(" + str(e.getNodeName()) + ");");
+        NamedNodeMap attributes = e.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            line(var + ".setAttribute(" + str(a.getNodeName()) + ", " + str(a.getNodeValue()) + ");");
+        }
+        NodeList childNodes = e.getChildNodes();
+        for (int i = 0; i < childNodes.getLength(); i++) {
+            Node n = childNodes.item(i);
+            switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                line(var + ".appendChild(" + compileDom((Element)n) + ");");
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                line(var + ".appendChild(doc.createTextNode(" + str(n.getNodeValue()) + "));");
+                break;
+            }
+        }
+        return var;
+    }
+
+    private static Class load(String className) throws ClassNotFoundException {
+        return Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+    }
+
+    private static boolean isAccessible(Class c) {
+        if (c.getCanonicalName() == null)
+            return false;
+        for (Class k = c; k != null; k = k.getEnclosingClass())
+            if (!Modifier.isPublic(k.getModifiers()))
+                return false;
+        return true;
+    }
+
+    private static String construct(Class<?> c) throws ReflectiveOperationException {
+        if (!isAccessible(c) || c.isInterface() || Modifier.isAbstract(c.getModifiers()))
+            return null;
+        if (c.getEnclosingClass() != null && !Modifier.isStatic(c.getModifiers()))
+            return null;
+        InjectionPlan plan = InjectionPlan.of(c);
+        if (plan.constructor == null || !Modifier.isPublic(plan.constructor.getModifiers()))
+            return null;
+        StringBuilder sb = new StringBuilder("new ").append(c.getCanonicalName()).append('(');
+        for (int i = 0; i < plan.parameters.length; i++) {
+            Dependency d = plan.parameters[i];
+            if (d.isDeferred() || d.type.isPrimitive() || !isAccessible(d.type))
+                return null;
+            if (i > 0)
+                sb.append(", ");
+            sb.append("r.getInstance(").append(d.type.getCanonicalName()).append(".class)");
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String classRef(Class c) {
+        if (isAccessible(c))
+            return c.getCanonicalName() + ".class";
+        return "Class.forName(" + str(c.getName()) + ")";
+    }
+
+    private static String str(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (ch < 0x20 || ch > 0x7e)
+                    sb.append(String.format("\\u%04x", (int)ch));
+                else
+                    sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
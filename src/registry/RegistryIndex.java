@@ -0,0 +1,98 @@
+package registry;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+@SuppressWarnings("rawtypes")
+public class RegistryIndex {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public static RegistryIndex load() throws IOException {
+        return load(Thread.currentThread().getContextClassLoader());
+    }
+
+    public static RegistryIndex load(ClassLoader cl) throws IOException {
+        RegistryIndex index = new RegistryIndex();
+        Enumeration<URL> urls = cl.getResources(RegistryIndexProcessor.INDEX);
+        while (urls.hasMoreElements())
+            index.read(urls.nextElement());
+        return index;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    Entry get(Class c) {
+        return entries.get(c.getName());
+    }
+
+    RegistryIndex merge(RegistryIndex other) {
+        RegistryIndex merged = new RegistryIndex();
+        merged.entries.putAll(other.entries);
+        merged.entries.putAll(entries);
+        return merged;
+    }
+
+    private void read(URL url) throws IOException {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null)
+                add(line);
+        }
+    }
+
+    void add(String line) {
+        if (line.isEmpty())
+            return;
+        String[] f = line.split("\t", -1);
+        Entry e = entries.get(f[1]);
+        if (e == null) {
+            e = new Entry();
+            entries.put(f[1], e);
+        }
+        switch (f[0]) {
+        case "default":
+            e.defaultImplementation = f[2];
+            break;
+        case "singleton":
+            e.singleton = true;
+            break;
+        case "scope":
+            e.scope = f[2];
+            break;
+        case "constructor":
+            e.constructor = f[2].isEmpty() ? new String[0] : f[2].split(",");
+            e.lazyParameters = f[3];
+            break;
+        case "field":
+            e.fields.add(new String[] { f[2], f[3].equals("-") ? null : f[3], f[4], f[5], f[6], f[7] });
+            break;
+        case "provides":
+            e.provides.add(new String[] { f[2], f[3].equals("-") ? null : f[3], f[4], f[5] });
+            break;
+        case "predestroy":
+            e.preDestroy = f[2];
+            e.preDestroyType = f[3];
+            break;
+        case "producer":
+            e.producers.add(new String[] { f[2], f[3], f[4].equals("-") ? null : f[4] });
+            break;
+        }
+    }
+
+    static class Entry {
+        String defaultImplementation;
+        boolean singleton;
+        String scope;
+        String[] constructor;
+        String lazyParameters;
+        String preDestroy;
+        String preDestroyType;
+        final List<String[]> fields = new ArrayList<>();
+        final List<String[]> provides = new ArrayList<>();
+        final List<String[]> producers = new ArrayList<>();
+    }
+}
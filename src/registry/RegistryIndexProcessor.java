@@ -0,0 +1,187 @@
+package registry;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.*;
+
+@SupportedAnnotationTypes("*")
+public class RegistryIndexProcessor extends AbstractProcessor {
+    static final String INDEX = "META-INF/registry.index";
+
+    private final List<String> lines = new ArrayList<>();
+    private final Set<String> indexed = new HashSet<>();
+
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        if (env.processingOver()) {
+            if (!lines.isEmpty())
+                write();
+            return false;
+        }
+        for (Element e : env.getRootElements())
+            if (e instanceof TypeElement)
+                index((TypeElement)e);
+        return false;
+    }
+
+    private void write() {
+        List<String> all = previous();
+        all.addAll(lines);
+        try {
+            FileObject f = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (Writer w = new OutputStreamWriter(f.openOutputStream(), StandardCharsets.UTF_8)) {
+                for (String line : all)
+                    w.write(line + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "can not write " + INDEX + ": " + e);
+        }
+    }
+
+    private List<String> previous() {
+        List<String> kept = new ArrayList<>();
+        try {
+            FileObject f = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(f.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length > 1 && !indexed.contains(fields[1]) && exists(fields[1]))
+                        kept.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // first build into this output directory
+        }
+        return kept;
+    }
+
+    private boolean exists(String binaryName) {
+        return processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.')) != null;
+    }
+
+    private void index(TypeElement t) {
+        String name = binaryName(t);
+        indexed.add(name);
+        line("class", name);
+
+        AnnotationMirror da = mirror(t, "registry.Default");
+        if (t.getKind() == ElementKind.INTERFACE && da != null)
+            line("default", name, typeName((TypeMirror)value(da)));
+        if (mirror(t, "javax.inject.Singleton") != null)
+            line("singleton", name);
+        for (AnnotationMirror a : t.getAnnotationMirrors()) {
+            Element type = a.getAnnotationType().asElement();
+            if (mirror(type, "javax.inject.Scope") != null && !isType(type, "javax.inject.Singleton"))
+                line("scope", name, binaryName((TypeElement)type));
+        }
+
+        for (ExecutableElement con : ElementFilter.constructorsIn(t.getEnclosedElements())) {
+            if (mirror(con, "javax.inject.Inject") == null || !con.getModifiers().contains(Modifier.PUBLIC))
+                continue;
+            StringBuilder types = new StringBuilder();
+            StringBuilder lazy = new StringBuilder();
+            for (VariableElement p : con.getParameters()) {
+                if (types.length() > 0)
+                    types.append(',');
+                types.append(typeName(p.asType()));
+                lazy.append(mirror(p, "registry.Lazy") != null ? '1' : '0');
+            }
+            line("constructor", name, types.toString(), lazy.toString());
+            break;
+        }
+
+        for (VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+            String fieldName = f.getSimpleName().toString();
+            String isStatic = f.getModifiers().contains(Modifier.STATIC) ? "1" : "0";
+            if (mirror(f, "javax.inject.Inject") != null)
+                line("field", name, fieldName, named(f), (mirror(f, "registry.Lazy") != null) ? "1" : "0",
+                        typeName(f.asType()), isStatic, providedType(f.asType()));
+            if (mirror(f, "registry.Provides") != null)
+                line("provides", name, fieldName, named(f), typeName(f.asType()), isStatic);
+        }
+
+        for (ExecutableElement m : ElementFilter.methodsIn(t.getEnclosedElements())) {
+            if (mirror(m, "registry.PreDestroy") != null && m.getParameters().isEmpty())
+                line("predestroy", name, m.getSimpleName().toString(), typeName(m.getReturnType()));
+            if (mirror(m, "registry.Provides") == null)
+                continue;
+            StringBuilder types = new StringBuilder();
+            for (VariableElement p : m.getParameters()) {
+                if (types.length() > 0)
+                    types.append(',');
+                types.append(typeName(p.asType()));
+            }
+            line("producer", name, m.getSimpleName().toString(), types.toString(), named(m));
+        }
+
+        for (TypeElement nested : ElementFilter.typesIn(t.getEnclosedElements()))
+            index(nested);
+    }
+
+    private String named(Element e) {
+        AnnotationMirror named = mirror(e, "javax.inject.Named");
+        if (named == null)
+            return "-";
+        Object value = value(named);
+        return (value == null || value.equals("")) ? e.getSimpleName().toString() : value.toString();
+    }
+
+    private void line(String... fields) {
+        lines.add(String.join("\t", fields));
+    }
+
+    private String binaryName(TypeElement t) {
+        return processingEnv.getElementUtils().getBinaryName(t).toString();
+    }
+
+    private String typeName(TypeMirror type) {
+        type = processingEnv.getTypeUtils().erasure(type);
+        switch (type.getKind()) {
+        case ARRAY:
+            return typeName(((ArrayType)type).getComponentType()) + "[]";
+        case DECLARED:
+            return binaryName((TypeElement)((DeclaredType)type).asElement());
+        default:
+            return type.toString();
+        }
+    }
+
+    private String providedType(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED || !isType(((DeclaredType)type).asElement(), "javax.inject.Provider"))
+            return "-";
+        List<? extends TypeMirror> args = ((DeclaredType)type).getTypeArguments();
+        if (args.isEmpty())
+            return "java.lang.Object";
+        TypeKind kind = args.get(0).getKind();
+        return (kind == TypeKind.DECLARED || kind == TypeKind.ARRAY) ? typeName(args.get(0)) : "java.lang.Object";
+    }
+
+    private static boolean isType(Element e, String name) {
+        return (e instanceof TypeElement) && ((TypeElement)e).getQualifiedName().contentEquals(name);
+    }
+
+    private static AnnotationMirror mirror(Element e, String name) {
+        for (AnnotationMirror a : e.getAnnotationMirrors())
+            if (isType(a.getAnnotationType().asElement(), name))
+                return a;
+        return null;
+    }
+
+    private static Object value(AnnotationMirror a) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : a.getElementValues().entrySet())
+            if (e.getKey().getSimpleName().contentEquals("value"))
+                return e.getValue().getValue();
+        return null;
+    }
+}
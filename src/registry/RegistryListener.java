@@ -0,0 +1,28 @@
+package registry;
+
+@SuppressWarnings("rawtypes")
+public interface RegistryListener {
+    public default void keyResolved(String key, long nanos, boolean found) {
+    }
+    
+    public default void classResolved(Class c, long nanos) {
+    }
+    
+    public default void parentLookup(Object key) {
+    }
+    
+    public default void instanceCreated(Class c, long nanos, boolean singleton) {
+    }
+    
+    public default void instanceDecorated(Class c, long nanos) {
+    }
+    
+    public default void instanceInitialized(Class c, long nanos) {
+    }
+    
+    public default void reloadFailed(String path, Exception e) {
+    }
+    
+    public default void disposalFailed(Exception e) {
+    }
+}
@@ -0,0 +1,226 @@
+package registry;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+@SuppressWarnings("rawtypes")
+public class RegistryMetrics implements RegistryListener, RegistryMetricsMBean {
+    private final ConcurrentMap<String, Histogram> keys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> keyMisses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, LongAdder> parentLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class, Histogram> resolutions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class, Histogram> prototypes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class, Histogram> singletons = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class, Histogram> decorations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class, Histogram> initializations = new ConcurrentHashMap<>();
+    private final LongAdder reloadFailures = new LongAdder();
+    private final LongAdder disposalFailures = new LongAdder();
+
+    public ObjectName registerMBean(String name) throws Exception {
+        ObjectName on = new ObjectName("registry:type=RegistryMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        return on;
+    }
+
+    public void keyResolved(String key, long nanos, boolean found) {
+        histogram(keys, key).record(nanos);
+        if (!found)
+            counter(keyMisses, key).increment();
+    }
+
+    public void classResolved(Class c, long nanos) {
+        histogram(resolutions, c).record(nanos);
+    }
+
+    public void parentLookup(Object key) {
+        counter(parentLookups, key).increment();
+    }
+
+    public void instanceCreated(Class c, long nanos, boolean singleton) {
+        histogram(singleton ? singletons : prototypes, c).record(nanos);
+    }
+
+    public void instanceDecorated(Class c, long nanos) {
+        histogram(decorations, c).record(nanos);
+    }
+
+    public void instanceInitialized(Class c, long nanos) {
+        histogram(initializations, c).record(nanos);
+    }
+
+    public void reloadFailed(String path, Exception e) {
+        reloadFailures.increment();
+    }
+
+    public void disposalFailed(Exception e) {
+        disposalFailures.increment();
+    }
+
+    public Histogram getKeyHistogram(String key) {
+        return keys.get(key);
+    }
+
+    public Histogram getResolutionHistogram(Class c) {
+        return resolutions.get(c);
+    }
+
+    public Histogram getCreationHistogram(Class c) {
+        Histogram h = prototypes.get(c);
+        return (h != null) ? h : singletons.get(c);
+    }
+
+    public Histogram getDecorationHistogram(Class c) {
+        return decorations.get(c);
+    }
+
+    public Histogram getInitHistogram(Class c) {
+        return initializations.get(c);
+    }
+
+    public long getKeyMisses(String key) {
+        LongAdder a = keyMisses.get(key);
+        return (a == null) ? 0 : a.sum();
+    }
+
+    public long getParentLookups(Object key) {
+        LongAdder a = parentLookups.get(key);
+        return (a == null) ? 0 : a.sum();
+    }
+
+    public long getKeyResolutions() {
+        return total(keys);
+    }
+
+    public long getClassResolutions() {
+        return total(resolutions);
+    }
+
+    public long getParentLookups() {
+        long n = 0;
+        for (LongAdder a : parentLookups.values())
+            n += a.sum();
+        return n;
+    }
+
+    public long getPrototypeCreations() {
+        return total(prototypes);
+    }
+
+    public long getSingletonCreations() {
+        return total(singletons);
+    }
+
+    public long getReloadFailures() {
+        return reloadFailures.sum();
+    }
+
+    public long getDisposalFailures() {
+        return disposalFailures.sum();
+    }
+
+    public void reset() {
+        keys.clear();
+        keyMisses.clear();
+        parentLookups.clear();
+        resolutions.clear();
+        prototypes.clear();
+        singletons.clear();
+        decorations.clear();
+        initializations.clear();
+        reloadFailures.reset();
+        disposalFailures.reset();
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        section(sb, "resolve", resolutions);
+        section(sb, "prototype", prototypes);
+        section(sb, "singleton", singletons);
+        section(sb, "decorate", decorations);
+        section(sb, "init", initializations);
+        section(sb, "key", keys);
+        for (Map.Entry<Object, LongAdder> e : parentLookups.entrySet())
+            sb.append("parent ").append(name(e.getKey())).append(" count=").append(e.getValue().sum()).append('\n');
+        return sb.toString();
+    }
+
+    private static void section(StringBuilder sb, String label, Map<?, Histogram> map) {
+        for (Map.Entry<?, Histogram> e : map.entrySet())
+            sb.append(label).append(' ').append(name(e.getKey())).append(' ').append(e.getValue()).append('\n');
+    }
+
+    private static String name(Object key) {
+        return (key instanceof Class) ? ((Class)key).getName() : String.valueOf(key);
+    }
+
+    private static long total(Map<?, Histogram> map) {
+        long n = 0;
+        for (Histogram h : map.values())
+            n += h.getCount();
+        return n;
+    }
+
+    private static <K> Histogram histogram(ConcurrentMap<K, Histogram> map, K key) {
+        Histogram h = map.get(key);
+        if (h == null) {
+            h = new Histogram();
+            Histogram existing = map.putIfAbsent(key, h);
+            if (existing != null)
+                h = existing;
+        }
+        return h;
+    }
+
+    private static <K> LongAdder counter(ConcurrentMap<K, LongAdder> map, K key) {
+        LongAdder a = map.get(key);
+        if (a == null) {
+            a = new LongAdder();
+            LongAdder existing = map.putIfAbsent(key, a);
+            if (existing != null)
+                a = existing;
+        }
+        return a;
+    }
+
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 1)) - 1);
+            count.increment();
+            sum.add(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return (n == 0) ? 0 : sum.sum() / n;
+        }
+
+        public long getPercentileNanos(double p) {
+            long n = count.sum();
+            long rank = (long)Math.ceil(n * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return (i >= 62) ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+            return 0;
+        }
+
+        public String toString() {
+            return "count=" + getCount() + " mean=" + getMeanNanos() + "ns p50<=" + getPercentileNanos(50) +
+                    "ns p99<=" + getPercentileNanos(99) + "ns";
+        }
+    }
+}
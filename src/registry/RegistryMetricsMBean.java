@@ -0,0 +1,21 @@
+package registry;
+
+public interface RegistryMetricsMBean {
+    public long getKeyResolutions();
+    
+    public long getClassResolutions();
+    
+    public long getParentLookups();
+    
+    public long getPrototypeCreations();
+    
+    public long getSingletonCreations();
+    
+    public long getReloadFailures();
+    
+    public long getDisposalFailures();
+    
+    public String report();
+    
+    public void reset();
+}
@@ -0,0 +1,29 @@
+package registry;
+
+import java.util.concurrent.*;
+
+public class RegistryPool {
+    private final Registry parent;
+    private final BlockingQueue<Registry> idle;
+
+    public RegistryPool(Registry parent, int maxIdle) {
+        this.parent = parent;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    public Registry acquire() {
+        Registry r = idle.poll();
+        return (r != null) ? r : parent.fork();
+    }
+
+    public void release(Registry r) throws RegistryException {
+        if (r.getParent() != parent)
+            throw new RegistryException("Registry was not acquired from this pool");
+        r.reset();
+        idle.offer(r);
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,38 @@
+package registry;
+
+import java.lang.ref.WeakReference;
+
+import javax.inject.Provider;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class RegistryProvider<T> implements Provider<T> {
+    private final Registry registry;
+    private final WeakReference<Registry> fork;
+    private final Class<T> type;
+    private final String name;
+
+    RegistryProvider(Registry registry, Class<T> type, String name) {
+        if (registry.getParent() == null) {
+            this.registry = registry;
+            this.fork = null;
+        } else {
+            this.registry = null;
+            this.fork = new WeakReference<Registry>(registry);
+        }
+        this.type = type;
+        this.name = name;
+    }
+
+    public T get() {
+        Registry r = (registry != null) ? registry : fork.get();
+        if (r == null)
+            throw new IllegalStateException("registry discarded before resolving " + ((name != null) ? name : type.getName()));
+        try {
+            return (name != null) ? (T)r.getInstance(name) : r.getInstance(type);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package registry;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+import javax.xml.stream.*;
+
+import registry.InjectionPlan.Dependency;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class RegistryReloader implements Closeable {
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Registry registry;
+    private final File file;
+    private Config current;
+    private WatchService watchService;
+    private volatile Set<Path> watched;
+    private Thread thread;
+    private volatile int reloadCount;
+
+    public RegistryReloader(Registry registry, String path) throws Exception {
+        this.registry = registry;
+        this.file = new File(path);
+        current = Config.read(file);
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null)
+            return;
+        final WatchService ws = FileSystems.getDefault().newWatchService();
+        watchService = ws;
+        watch(current.files);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch(ws);
+            }
+        }, "registry-reloader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() throws IOException {
+        if (thread == null)
+            return;
+        watchService.close();
+        watchService = null;
+        thread.interrupt();
+        thread = null;
+    }
+
+    public int getReloadCount() {
+        return reloadCount;
+    }
+
+    private void watch(List<File> files) throws IOException {
+        Set<Path> paths = new HashSet<>();
+        for (File f : files) {
+            Path path = f.getAbsoluteFile().toPath();
+            if (paths.add(path))
+                path.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        }
+        watched = paths;
+    }
+
+    private void watch(WatchService ws) {
+        try {
+            while (true) {
+                if (!affects(ws.take(), watched))
+                    continue;
+                Thread.sleep(SETTLE_MILLIS);
+                for (WatchKey key = ws.poll(); key != null; key = ws.poll())
+                    affects(key, watched);
+                try {
+                    reload();
+                } catch (Exception e) {
+                    failed(e);
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (ClosedWatchServiceException e) {
+        }
+    }
+
+    private void failed(Exception e) {
+        RegistryListener l = registry.getListener();
+        if (l != null)
+            l.reloadFailed(file.getPath(), e);
+        else
+            e.printStackTrace();
+    }
+
+    private static boolean affects(WatchKey key, Set<Path> paths) {
+        boolean result = false;
+        Path dir = (Path)key.watchable();
+        for (WatchEvent<?> e : key.pollEvents())
+            if (e.context() instanceof Path && paths.contains(dir.resolve((Path)e.context())))
+                result = true;
+        key.reset();
+        return result;
+    }
+
+    public synchronized boolean reload() throws Exception {
+        Config next = Config.read(file);
+        if (!next.others.equals(current.others))
+            throw new RegistryException("only property and instance elements can be reloaded: " + file);
+
+        Set<String> removed = new HashSet<>(current.entries.keySet());
+        removed.removeAll(next.entries.keySet());
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Entry> e : next.entries.entrySet())
+            if (!e.getValue().equals(current.entries.get(e.getKey())))
+                changed.add(e.getKey());
+        addTemplateDependents(next, changed, removed);
+        if (changed.isEmpty() && removed.isEmpty()) {
+            update(next);
+            return false;
+        }
+
+        Registry staging = new Registry(registry);
+        Map<String, Object> named = new HashMap<>();
+        for (Map.Entry<String, Entry> e : next.entries.entrySet()) {
+            if (!changed.contains(e.getKey()))
+                continue;
+            Object value = e.getValue().create(staging);
+            staging.registerInstance(e.getKey(), value);
+            named.put(e.getKey(), value);
+        }
+
+        Set<String> keys = new HashSet<>(changed);
+        keys.addAll(removed);
+        Map<Class, List<Class>> live = singletonKeys(registry);
+        Set<Class> affected = affected(registry, live.keySet(), keys, Collections.<Class>emptySet());
+        Map<Class, Object> singletons = new HashMap<>();
+        for (Class c : sort(registry, affected)) {
+            Object o = staging.rebuild(c);
+            for (Class key : live.get(c))
+                singletons.put(key, o);
+        }
+        for (Map.Entry<Class, Object> e : staging.detachSingletons().entrySet())
+            if (!singletons.containsKey(e.getKey()))
+                singletons.put(e.getKey(), e.getValue());
+
+        Lock lock = registry.getReloadLock().writeLock();
+        lock.lock();
+        try {
+            invalidateForks(registry, staging, keys, affected);
+            registry.replace(named, removed, singletons);
+        } finally {
+            lock.unlock();
+        }
+        update(next);
+        reloadCount++;
+        return true;
+    }
+
+    private void update(Config next) throws IOException {
+        current = next;
+        if (watchService != null)
+            watch(next.files);
+    }
+
+    private static void addTemplateDependents(Config next, Set<String> changed, Set<String> removed) {
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Map.Entry<String, Entry> e : next.entries.entrySet()) {
+                if (changed.contains(e.getKey()))
+                    continue;
+                for (String var : e.getValue().vars) {
+                    if (changed.contains(var) || removed.contains(var)) {
+                        changed.add(e.getKey());
+                        grown = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void invalidateForks(Registry r, Registry staging, Set<String> keys, Set<Class> inherited) throws Exception {
+        for (Registry fork : r.getForks()) {
+            if (fork == staging)
+                continue;
+            Map<Class, List<Class>> live = singletonKeys(fork);
+            Set<Class> affected = affected(fork, live.keySet(), keys, inherited);
+            for (Class c : affected)
+                for (Class key : live.get(c))
+                    fork.removeImplementation(key);
+            affected.addAll(inherited);
+            invalidateForks(fork, staging, keys, affected);
+        }
+    }
+
+    private static Map<Class, List<Class>> singletonKeys(Registry r) throws Exception {
+        Map<Class, List<Class>> result = new HashMap<>();
+        for (Map.Entry<Class, Object> e : r.getSingletons().entrySet()) {
+            Class c = e.getValue().getClass();
+            if (!InjectionPlan.of(c).singleton)
+                continue;
+            List<Class> keys = result.get(c);
+            if (keys == null)
+                result.put(c, keys = new ArrayList<>());
+            keys.add(e.getKey());
+        }
+        return result;
+    }
+
+    private static Set<Class> affected(Registry r, Set<Class> live, Set<String> keys, Set<Class> inherited) throws Exception {
+        Set<Class> affected = new HashSet<>();
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Class c : live) {
+                if (affected.contains(c))
+                    continue;
+                if (dependsOn(r, InjectionPlan.of(c), keys, affected, inherited)) {
+                    affected.add(c);
+                    grown = true;
+                }
+            }
+        }
+        return affected;
+    }
+
+    private static boolean dependsOn(Registry r, InjectionPlan plan, Set<String> keys, Set<Class> affected,
+            Set<Class> inherited) throws Exception {
+        for (Dependency d : plan.parameters)
+            if (dependsOn(r, d, keys, affected, inherited))
+                return true;
+        for (Dependency d : plan.fields)
+            if (dependsOn(r, d, keys, affected, inherited))
+                return true;
+        return false;
+    }
+
+    private static boolean dependsOn(Registry r, Dependency d, Set<String> keys, Set<Class> affected,
+            Set<Class> inherited) throws Exception {
+        if (d.isDeferred())
+            return false;
+        if (d.name != null)
+            return keys.contains(d.name);
+        Class c = implementation(r, d.type);
+        return affected.contains(c) || inherited.contains(c);
+    }
+
+    private static Class implementation(Registry r, Class c) throws Exception {
+        Object bound = r.getBinding(c);
+        if (bound != null && !(bound instanceof Producer))
+            return bound.getClass();
+        if (c.isInterface() && InjectionPlan.of(c).defaultImplementation != null)
+            return InjectionPlan.of(c).defaultImplementation;
+        return c;
+    }
+
+    private static List<Class> sort(Registry r, Set<Class> affected) throws Exception {
+        List<Class> order = new ArrayList<>();
+        Set<Class> visited = new HashSet<>();
+        for (Class c : affected)
+            sort(r, c, affected, visited, order);
+        return order;
+    }
+
+    private static void sort(Registry r, Class c, Set<Class> affected, Set<Class> visited, List<Class> order) throws Exception {
+        if (!visited.add(c))
+            return;
+        InjectionPlan plan = InjectionPlan.of(c);
+        for (Dependency d : plan.parameters)
+            if (!d.isDeferred() && d.name == null && affected.contains(implementation(r, d.type)))
+                sort(r, implementation(r, d.type), affected, visited, order);
+        for (Dependency d : plan.fields)
+            if (!d.isDeferred() && d.name == null && affected.contains(implementation(r, d.type)))
+                sort(r, implementation(r, d.type), affected, visited, order);
+        order.add(c);
+    }
+
+    private static class Entry {
+        final String kind;
+        final String value;
+        final Template template;
+        final List<String> vars;
+
+        Entry(String kind, String value) {
+            this.kind = kind;
+            this.value = value;
+            this.template = kind.equals("property") ? Template.compile(value) : null;
+            this.vars = (template != null) ? template.getVars() : Collections.<String>emptyList();
+        }
+
+        Object create(Registry staging) throws Exception {
+            switch (kind) {
+            case "property":
+                return template.render(staging);
+            case "class":
+                return staging.newInstance(Class.forName(value));
+            default:
+                RegistryInstanceBuilder rib = (RegistryInstanceBuilder)staging.getInstance(Class.forName(value));
+                return rib.createInstance();
+            }
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry e = (Entry)o;
+            return kind.equals(e.kind) && value.equals(e.value);
+        }
+
+        public int hashCode() {
+            return kind.hashCode() * 31 + value.hashCode();
+        }
+    }
+
+    private static class Config {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        final List<String> others = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+
+        private final Deque<File> including = new ArrayDeque<>();
+
+        static Config read(File f) throws Exception {
+            Config config = new Config();
+            config.readFile(f);
+            return config;
+        }
+
+        private void readFile(File f) throws Exception {
+            File canonical = f.getCanonicalFile();
+            if (including.contains(canonical))
+                throw new RegistryException("include cycle at " + f);
+            if (!files.contains(canonical))
+                files.add(canonical);
+            including.push(canonical);
+            try {
+                parse(f);
+            } finally {
+                including.pop();
+            }
+        }
+
+        private void parse(File f) throws Exception {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                XMLStreamReader r = factory.createXMLStreamReader(f.toURI().toString(), in);
+                try {
+                    r.nextTag();
+                    while (r.hasNext()) {
+                        int event = r.next();
+                        if (event == XMLStreamConstants.START_ELEMENT)
+                            element(f, r);
+                        else if (event == XMLStreamConstants.END_ELEMENT)
+                            break;
+                    }
+                } finally {
+                    r.close();
+                }
+            }
+        }
+
+        private void element(File f, XMLStreamReader r) throws Exception {
+            String tag = r.getLocalName();
+            String name = r.getAttributeValue(null, "name");
+            if (name == null)
+                name = "";
+            if (tag.equals("include")) {
+                String include = r.getAttributeValue(null, "file");
+                readFile(XMLRegistryBuilder.include(f, (include == null) ? "" : include));
+            } else if (tag.equals("property")) {
+                String value = r.getAttributeValue(null, "value");
+                entry(name, new Entry("property", (value == null) ? "" : value));
+            } else if (tag.equals("instance")) {
+                String className = r.getAttributeValue(null, "class");
+                String builder = r.getAttributeValue(null, "builder");
+                if (className != null && !className.equals(""))
+                    entry(name, new Entry("class", className));
+                else if (builder != null && !builder.equals(""))
+                    entry(name, new Entry("builder", builder));
+                else
+                    throw new RegistryException("no implementation for key " + name);
+            } else {
+                StringBuilder sb = new StringBuilder();
+                serialize(r, sb);
+                others.add(sb.toString());
+                return;
+            }
+            serialize(r, new StringBuilder());
+        }
+
+        private void entry(String name, Entry e) throws RegistryException {
+            if (entries.put(name, e) != null)
+                throw new RegistryException("Key " + name + " duplicated");
+        }
+
+        private static void serialize(XMLStreamReader r, StringBuilder sb) throws XMLStreamException {
+            sb.append('<').append(r.getPrefix()).append(':').append(r.getLocalName());
+            for (int i = 0; i < r.getAttributeCount(); i++)
+                sb.append(' ').append(r.getAttributeLocalName(i)).append("=\"").append(r.getAttributeValue(i)).append('"');
+            sb.append('>');
+            while (true) {
+                switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    serialize(r, sb);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    sb.append(r.getText().trim());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    sb.append("</>");
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package registry;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import registry.InjectionPlan.InjectionPoint;
+import registry.InjectionPlan.Provision;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+class RegistrySnapshot {
+    static final String BUILD_STAMP = "registry.build";
+
+    static final byte STRING = 'S';
+    static final byte PLACEHOLDER = 'H';
+    static final byte NEW = 'N';
+    static final byte BUILDER = 'B';
+    static final byte IMPLEMENTATION = 'M';
+    static final byte PRODUCER = 'R';
+
+    private static final int MAGIC = 0x52474e53;
+    private static final int VERSION = 5;
+
+    private final List<File> files = new ArrayList<>();
+    private final Map<Object, Object[]> recipes = new IdentityHashMap<>();
+    private final Set<Class> planned = Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
+
+    void file(File f) {
+        files.add(f.getAbsoluteFile());
+    }
+
+    void recipe(Object value, byte kind, Class c) {
+        recipes.put(value, new Object[] { String.valueOf((char)kind), c });
+    }
+
+    Set<Class> planned() {
+        return planned;
+    }
+
+    boolean save(File f, long fingerprint, Registry registry) throws Exception {
+        Path target = f.toPath().toAbsolutePath();
+        ByteArrayOutputStream bindings = new ByteArrayOutputStream();
+        int count = bindings(new DataOutputStream(bindings), registry);
+        if (count < 0) {
+            Files.deleteIfExists(target);
+            return false;
+        }
+        List<String> lines = plans();
+
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(files.size());
+                for (File file : files) {
+                    writeString(out, file.getPath());
+                    out.writeLong(file.lastModified());
+                    out.writeLong(file.length());
+                }
+                out.writeInt(lines.size());
+                for (String line : lines)
+                    writeString(out, line);
+                out.writeInt(count);
+                bindings.writeTo(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    private int bindings(DataOutputStream out, Registry registry) throws Exception {
+        int count = 0;
+        for (Map.Entry<Object, Object> e : registry.getBindings().entrySet()) {
+            Object key = e.getKey();
+            Object value = e.getValue();
+            if (value == registry)
+                continue;
+            if (key instanceof Class && !visible((Class)key))
+                return -1;
+
+            String[] recipe = recipe(registry, key, value);
+            if (recipe == null)
+                return -1;
+            if (recipe.length == 0)
+                continue;
+            out.writeByte(recipe[0].charAt(0));
+            out.writeByte((key instanceof Class) ? 'C' : 'S');
+            writeString(out, (key instanceof Class) ? ((Class)key).getName() : (String)key);
+            for (int i = 1; i < recipe.length; i++)
+                writeString(out, recipe[i]);
+            count++;
+        }
+        return count;
+    }
+
+    private String[] recipe(Registry registry, Object key, Object value) throws Exception {
+        if (value == null)
+            return new String[] { String.valueOf((char)PLACEHOLDER) };
+        if (value instanceof String)
+            return new String[] { String.valueOf((char)STRING), (String)value };
+        Object[] recipe = recipes.get(value);
+        if (recipe != null) {
+            Class c = (Class)recipe[1];
+            if (!visible(c) || !visible(value.getClass()))
+                return null;
+            return new String[] { (String)recipe[0], c.getName(), value.getClass().getName() };
+        }
+        if (value.getClass() == Producer.class) {
+            Method m = ((Producer)value).provision.method;
+            if (m == null || !visible(m.getDeclaringClass()) || !visible(m.getReturnType()))
+                return null;
+            return new String[] { String.valueOf((char)PRODUCER), m.getDeclaringClass().getName(),
+                    signature(m), m.getReturnType().getName() };
+        }
+        Class c = value.getClass();
+        if (!(key instanceof Class) || registry.getBinding(c) != value || !InjectionPlan.of(c).singleton || !visible(c))
+            return null;
+        if (key == c)
+            return new String[0];
+        return new String[] { String.valueOf((char)IMPLEMENTATION), c.getName(), c.getName() };
+    }
+
+    private List<String> plans() throws Exception {
+        List<String> lines = new ArrayList<>();
+        Set<Class> written = new HashSet<>();
+        for (Class c : planned)
+            for (Class k = c; k != null && k.getClassLoader() != null && visible(k); k = k.getSuperclass())
+                if (written.add(k))
+                    plan(k, lines);
+        return lines;
+    }
+
+    private static void plan(Class c, List<String> lines) throws Exception {
+        InjectionPlan plan = InjectionPlan.of(c);
+        String name = c.getName();
+        lines.add(line("class", name));
+        if (plan.defaultImplementation != null)
+            lines.add(line("default", name, plan.defaultImplementation.getName()));
+        if (plan.singleton)
+            lines.add(line("singleton", name));
+        if (plan.scope != null)
+            lines.add(line("scope", name, plan.scope.getName()));
+        if (plan.constructor != null && plan.parameters.length > 0) {
+            StringBuilder lazy = new StringBuilder();
+            for (InjectionPlan.Dependency d : plan.parameters)
+                lazy.append(d.lazy ? '1' : '0');
+            lines.add(line("constructor", name, typeNames(plan.parameterTypes), lazy.toString()));
+        }
+        for (InjectionPoint ip : plan.fields)
+            if (ip.owner == c)
+                lines.add(line("field", name, ip.fieldName, named(ip.name), ip.lazy ? "1" : "0", typeName(ip.type),
+                        ip.isStatic ? "1" : "0", ip.provider ? typeName(ip.target) : "-"));
+        for (Provision p : plan.provisions) {
+            if (p.method == null)
+                lines.add(line("provides", name, p.fieldName, named(p.name), typeName(p.fieldType), p.isStatic ? "1" : "0"));
+            else
+                lines.add(line("producer", name, p.method.getName(), typeNames(p.method.getParameterTypes()), named(p.name)));
+        }
+        if (plan.preDestroy != null && plan.preDestroy.owner == c)
+            lines.add(line("predestroy", name, plan.preDestroy.name, typeName(plan.preDestroy.returnType)));
+    }
+
+    private static String line(String... fields) {
+        return String.join("\t", fields);
+    }
+
+    private static String named(String name) {
+        return (name == null) ? "-" : name;
+    }
+
+    private static String typeNames(Class[] types) {
+        StringBuilder sb = new StringBuilder();
+        for (Class t : types) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(typeName(t));
+        }
+        return sb.toString();
+    }
+
+    private static String typeName(Class c) {
+        return c.isArray() ? typeName(c.getComponentType()) + "[]" : c.getName();
+    }
+
+    private static String signature(Method m) {
+        return m.getName() + "(" + typeNames(m.getParameterTypes()) + ")";
+    }
+
+    private static boolean visible(Class c) {
+        if (c.isPrimitive())
+            return true;
+        try {
+            return Class.forName(c.getName(), false, RegistrySnapshot.class.getClassLoader()) == c;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static Registry restore(File f, long fingerprint) throws IOException {
+        if (!f.isFile())
+            return null;
+        MappedByteBuffer in;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != fingerprint)
+                return null;
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(string(in));
+                if (file.lastModified() != in.getLong() || file.length() != in.getLong())
+                    return null;
+            }
+            RegistryIndex plans = new RegistryIndex();
+            count = in.getInt();
+            for (int i = 0; i < count; i++)
+                plans.add(string(in));
+
+            Registry registry = new Registry();
+            registry.registerInstance(registry);
+            Map<Class, Object> owners = new HashMap<>();
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                byte kind = in.get();
+                Object key = (in.get() == 'C') ? load(string(in)) : string(in);
+                Object value;
+                switch (kind) {
+                case PLACEHOLDER:
+                    registry.registerImplementation((Class)key);
+                    continue;
+                case STRING:
+                    value = string(in);
+                    break;
+                case PRODUCER:
+                    value = new Produced(registry, owners, string(in), string(in), string(in));
+                    break;
+                default:
+                    value = new Deferred(registry, kind, string(in), string(in));
+                    break;
+                }
+                if (key instanceof Class)
+                    registry.registerInstance((Class)key, value);
+                else
+                    registry.registerInstance((String)key, value);
+            }
+            InjectionPlan.addIndex(plans);
+            return registry;
+        } catch (BufferUnderflowException | ClassNotFoundException | LinkageError | RegistryException e) {
+            return null;
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getInt();
+        ByteBuffer b = in.duplicate();
+        b.limit(b.position() + length);
+        in.position(in.position() + length);
+        return StandardCharsets.UTF_8.decode(b).toString();
+    }
+
+    private static Class load(String name) throws ClassNotFoundException {
+        return Class.forName(name, false, RegistrySnapshot.class.getClassLoader());
+    }
+
+    private static Class type(String name) {
+        try {
+            return load(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("snapshot refers to a missing class " + name, e);
+        }
+    }
+
+    static long fingerprint(Properties p) throws IOException {
+        CRC32 crc = new CRC32();
+        for (String key : new TreeSet<>(p.stringPropertyNames()))
+            crc.update((key + '=' + p.getProperty(key) + '\n').getBytes(StandardCharsets.UTF_8));
+        String classPath = System.getProperty("java.class.path", "");
+        crc.update(classPath.getBytes(StandardCharsets.UTF_8));
+        String stamp = System.getProperty(BUILD_STAMP);
+        if (stamp != null) {
+            crc.update(stamp.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+        long checksum = crc.getValue();
+        for (String entry : classPath.split(File.pathSeparator))
+            checksum = checksum * 31 + stamp(new File(entry));
+        return checksum;
+    }
+
+    private static long stamp(File entry) throws IOException {
+        if (!entry.isDirectory())
+            return entry.lastModified() * 31 + entry.length();
+        final long[] sum = new long[1];
+        Files.walkFileTree(entry.toPath(), new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes a) {
+                sum[0] += (file.hashCode() * 31L + a.lastModifiedTime().toMillis()) * 31 + a.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return sum[0];
+    }
+
+    private static class Deferred extends Producer {
+        private final byte kind;
+        private final String className;
+        private final String typeName;
+
+        Deferred(Registry registry, byte kind, String className, String typeName) {
+            super(registry, null, null);
+            this.kind = kind;
+            this.className = className;
+            this.typeName = typeName;
+        }
+
+        Class type() {
+            return RegistrySnapshot.type(typeName);
+        }
+
+        Object invoke() throws Exception {
+            Class c = load(className);
+            switch (kind) {
+            case NEW:
+                return registry.newInstance(c);
+            case BUILDER:
+                return ((RegistryInstanceBuilder)registry.getInstance(c)).createInstance();
+            default:
+                return registry.getInstance(c);
+            }
+        }
+
+        void track(Object value) throws Exception {
+            if (kind == NEW)
+                registry.track(value);
+        }
+    }
+
+    private static class Produced extends Producer {
+        private final Map<Class, Object> owners;
+        private final String ownerName;
+        private final String signature;
+        private final String typeName;
+        private volatile Producer producer;
+
+        Produced(Registry registry, Map<Class, Object> owners, String ownerName, String signature, String typeName) {
+            super(registry, null, null);
+            this.owners = owners;
+            this.ownerName = ownerName;
+            this.signature = signature;
+            this.typeName = typeName;
+        }
+
+        Class type() {
+            return RegistrySnapshot.type(typeName);
+        }
+
+        Object get() throws Exception {
+            return producer().get();
+        }
+
+        Object produced() {
+            Producer p = producer;
+            return (p == null) ? null : p.produced();
+        }
+
+        void discard(Set<Object> disposed) {
+            Producer p = producer;
+            if (p != null)
+                p.discard(disposed);
+        }
+
+        private Producer producer() throws Exception {
+            Producer p = producer;
+            if (p != null)
+                return p;
+            synchronized (owners) {
+                if (producer != null)
+                    return producer;
+                Class c = load(ownerName);
+                for (Provision provision : InjectionPlan.of(c).provisions) {
+                    if (provision.method == null || !signature(provision.method).equals(signature))
+                        continue;
+                    Object owner = null;
+                    if (!Modifier.isStatic(provision.method.getModifiers())) {
+                        owner = owners.get(c);
+                        if (owner == null) {
+                            owner = registry.getInstance(c);
+                            owners.put(c, owner);
+                        }
+                    }
+                    return producer = new Producer(registry, owner, provision);
+                }
+                throw new RegistryException("snapshot refers to a missing producer " + ownerName + "." + signature);
+            }
+        }
+    }
+}
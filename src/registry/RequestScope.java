@@ -0,0 +1,40 @@
+package registry;
+
+import java.util.*;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class RequestScope implements InstanceScope {
+    private final ThreadLocal<Map<Class, Object>> current = new ThreadLocal<>();
+
+    public void enter() throws RegistryException {
+        if (current.get() != null)
+            throw new RegistryException("Request scope already active");
+        current.set(new LinkedHashMap<Class, Object>());
+    }
+
+    public void exit() throws RegistryException {
+        Map<Class, Object> m = current.get();
+        current.remove();
+        if (m == null)
+            return;
+        List<Object> instances = new ArrayList<>(m.values());
+        Collections.reverse(instances);
+        Disposal.disposeAll(instances);
+    }
+
+    public boolean isActive() {
+        return current.get() != null;
+    }
+
+    public <T> T getInstance(Class<T> c, RegistryInstanceBuilder<T> builder) throws Exception {
+        Map<Class, Object> m = current.get();
+        if (m == null)
+            throw new RegistryException("No active request scope for " + c.getName());
+        Object o = m.get(c);
+        if (o == null) {
+            o = builder.createInstance();
+            m.put(c, o);
+        }
+        return (T)o;
+    }
+}
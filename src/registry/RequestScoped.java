@@ -0,0 +1,12 @@
+package registry;
+
+import java.lang.annotation.*;
+
+import javax.inject.Scope;
+
+@Scope
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RequestScoped {
+
+}
@@ -0,0 +1,71 @@
+package registry;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+class Template {
+    private static final int CACHE_LIMIT = 1024;
+    private static final Map<String, Template> CACHE = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final String[] literals;
+    private final String[] vars;
+
+    private Template(String source, List<String> literals, List<String> vars) {
+        this.source = source;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.vars = vars.toArray(new String[vars.size()]);
+    }
+
+    static Template compile(String s) {
+        Template t = CACHE.get(s);
+        if (t == null) {
+            t = parse(s);
+            if (CACHE.size() >= CACHE_LIMIT)
+                CACHE.clear();
+            CACHE.put(s, t);
+        }
+        return t;
+    }
+
+    private static Template parse(String s) {
+        List<String> literals = new ArrayList<>();
+        List<String> vars = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int start = s.indexOf("${", pos);
+            int end = (start < 0) ? -1 : s.indexOf('}', start + 2);
+            if (end < 0) {
+                literals.add(s.substring(pos));
+                break;
+            }
+            literals.add(s.substring(pos, start));
+            vars.add(s.substring(start + 2, end));
+            pos = end + 1;
+        }
+        return new Template(s, literals, vars);
+    }
+
+    List<String> getVars() {
+        return Arrays.asList(vars);
+    }
+
+    boolean isConstant() {
+        return vars.length == 0;
+    }
+
+    String render(Registry registry) throws Exception {
+        if (vars.length == 0)
+            return source;
+        StringBuilder sb = new StringBuilder(source.length() + 16);
+        for (int i = 0; i < vars.length; i++) {
+            sb.append(literals[i]);
+            Object o = registry.getInstance(vars[i]);
+            if (o != null)
+                sb.append(o.toString());
+            else
+                sb.append("${").append(vars[i]).append('}');
+        }
+        return sb.append(literals[vars.length]).toString();
+    }
+}
@@ -0,0 +1,29 @@
+package registry;
+
+import java.util.*;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ThreadScope implements InstanceScope {
+    private final ThreadLocal<Map<Class, Object>> instances = new ThreadLocal<>();
+
+    public <T> T getInstance(Class<T> c, RegistryInstanceBuilder<T> builder) throws Exception {
+        Map<Class, Object> m = instances.get();
+        if (m == null) {
+            m = new LinkedHashMap<>();
+            instances.set(m);
+        }
+        Object o = m.get(c);
+        if (o == null) {
+            o = builder.createInstance();
+            m.put(c, o);
+        }
+        return (T)o;
+    }
+
+    public void clear() throws RegistryException {
+        Map<Class, Object> m = instances.get();
+        instances.remove();
+        if (m != null)
+            Disposal.disposeAll(m.values());
+    }
+}
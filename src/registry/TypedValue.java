@@ -0,0 +1,159 @@
+package registry;
+
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+@SuppressWarnings("rawtypes")
+class TypedValue {
+    private static final Object INVALID = new Object();
+    private static final Map<String, Object> UNITS = new HashMap<>();
+
+    static {
+        UNITS.put("b", 1L);
+        UNITS.put("k", 1L << 10);
+        UNITS.put("kb", 1L << 10);
+        UNITS.put("mb", 1L << 20);
+        UNITS.put("g", 1L << 30);
+        UNITS.put("gb", 1L << 30);
+        UNITS.put("t", 1L << 40);
+        UNITS.put("tb", 1L << 40);
+        UNITS.put("ns", ChronoUnit.NANOS);
+        UNITS.put("us", ChronoUnit.MICROS);
+        UNITS.put("ms", ChronoUnit.MILLIS);
+        UNITS.put("s", ChronoUnit.SECONDS);
+        UNITS.put("m", ChronoUnit.MINUTES);
+        UNITS.put("h", ChronoUnit.HOURS);
+        UNITS.put("d", ChronoUnit.DAYS);
+    }
+
+    final Object raw;
+    private final String key;
+    private Object longValue;
+    private Object doubleValue;
+    private Object duration;
+
+    TypedValue(String key, Object raw) {
+        this.key = key;
+        this.raw = raw;
+    }
+
+    long asLong() throws RegistryException {
+        Object v = longValue;
+        if (v == null)
+            longValue = v = parseLong();
+        if (v == INVALID)
+            throw invalid("long");
+        return (Long)v;
+    }
+
+    int asInt() throws RegistryException {
+        long v = asLong();
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+            throw invalid("int");
+        return (int)v;
+    }
+
+    double asDouble() throws RegistryException {
+        Object v = doubleValue;
+        if (v == null)
+            doubleValue = v = parseDouble();
+        if (v == INVALID)
+            throw invalid("double");
+        return (Double)v;
+    }
+
+    boolean asBoolean() throws RegistryException {
+        if (raw instanceof Boolean)
+            return (Boolean)raw;
+        String s = raw.toString().trim();
+        if (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("yes") || s.equals("1"))
+            return true;
+        if (s.equalsIgnoreCase("false") || s.equalsIgnoreCase("no") || s.equals("0"))
+            return false;
+        throw invalid("boolean");
+    }
+
+    Object as(Class type) throws RegistryException {
+        if (type == long.class)
+            return asLong();
+        if (type == int.class)
+            return asInt();
+        if (type == boolean.class)
+            return asBoolean();
+        if (type == double.class)
+            return asDouble();
+        if (type == float.class)
+            return (float)asDouble();
+        if (type == short.class)
+            return (short)asInt();
+        if (type == byte.class)
+            return (byte)asInt();
+        throw new RegistryException("Unsupported property type " + type + " for " + key);
+    }
+
+    Duration asDuration() throws RegistryException {
+        Object v = duration;
+        if (v == null)
+            duration = v = parseDuration();
+        if (v == INVALID)
+            throw invalid("duration");
+        return (Duration)v;
+    }
+
+    private Object parseLong() {
+        if (raw instanceof Number)
+            return ((Number)raw).longValue();
+        String s = raw.toString().trim();
+        int i = numberEnd(s);
+        Object unit = (i == s.length()) ? Long.valueOf(1) : UNITS.get(s.substring(i).trim().toLowerCase());
+        if (i == 0 || !(unit instanceof Long))
+            return INVALID;
+        try {
+            return Math.multiplyExact(Long.parseLong(s.substring(0, i)), (Long)unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return INVALID;
+        }
+    }
+
+    private Object parseDouble() {
+        if (raw instanceof Number)
+            return ((Number)raw).doubleValue();
+        try {
+            return Double.parseDouble(raw.toString().trim());
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    private Object parseDuration() {
+        if (raw instanceof Duration)
+            return raw;
+        if (raw instanceof Number)
+            return Duration.ofMillis(((Number)raw).longValue());
+        String s = raw.toString().trim();
+        try {
+            if (s.startsWith("P") || s.startsWith("p"))
+                return Duration.parse(s);
+            int i = numberEnd(s);
+            Object unit = (i == s.length()) ? ChronoUnit.MILLIS : UNITS.get(s.substring(i).trim().toLowerCase());
+            if (i == 0 || !(unit instanceof ChronoUnit))
+                return INVALID;
+            return Duration.of(Long.parseLong(s.substring(0, i)), (ChronoUnit)unit);
+        } catch (NumberFormatException | DateTimeParseException | ArithmeticException e) {
+            return INVALID;
+        }
+    }
+
+    private static int numberEnd(String s) {
+        int i = (s.startsWith("-")) ? 1 : 0;
+        while (i < s.length() && Character.isDigit(s.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private RegistryException invalid(String type) {
+        return new RegistryException("Property " + key + " is not a valid " + type + ": " + raw);
+    }
+}
@@ -1,37 +1,306 @@
 package registry;
 
-import java.io.File;
+import java.io.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
+import javax.xml.stream.*;
 
 import org.w3c.dom.*;
 
-@SuppressWarnings("rawtypes")
+@SuppressWarnings({"rawtypes", "unchecked"})
 public class XMLRegistryBuilder {
-    private Pattern varPattern = Pattern.compile("\\$\\{(.*)\\}");  // ${var}
     private Registry registry;
     private Map<String, Configurator> configuratorMap = new HashMap<>();
     private Map<String, String> notActiveConfiguirators = new HashMap<>();
+    private Document document;
+    private ParallelInitializer parallelInit;
+    private RegistrySnapshot recording;
+    private boolean fromSnapshot;
+    private final Deque<File> reading = new ArrayDeque<>();
+    private Map<String, List<Element>> batches = new LinkedHashMap<>();
+    private Map<String, Document> batchDocuments = new HashMap<>();
+    private Executor batchExecutor;
+    private BootstrapProfiler profiler;
     
-    public XMLRegistryBuilder(String path, Properties p) throws Exception {
+    public XMLRegistryBuilder(Properties p) throws Exception {
+        start(p);
+    }
+    
+    private void start(Properties p) throws Exception {
         registry = new Registry();    
         registry.registerInstance(registry);
+        profiler = BootstrapProfiler.forBootstrap();
+        if (profiler != null)
+            registry.setListener(profiler);
         
-        addProperties(p);
-        
-        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-        Document doc = docBuilder.parse(new File(path));
-        Node root = doc.getDocumentElement();
-        NodeList childNodes = root.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node n = childNodes.item(i);
-            if (n.getNodeType() == Node.ELEMENT_NODE)
-                configElement((Element)n);
+        try {
+            addProperties(p);
+            loadConfigurators();
+        } catch (Exception e) {
+            finish();
+            throw e;
+        }
+    }
+    
+    public XMLRegistryBuilder(String path, Properties p) throws Exception {
+        this(p);
+        try {
+            read(new File(path));
+            flush();
+        } finally {
+            finish();
+        }
+    }
+    
+    public XMLRegistryBuilder(String path, Properties p, Executor initExecutor) throws Exception {
+        this(path, p, initExecutor, null);
+    }
+    
+    public XMLRegistryBuilder(String path, Properties p, Executor initExecutor, Executor batchExecutor) throws Exception {
+        this(p);
+        try {
+            this.batchExecutor = batchExecutor;
+            parallelInit = new ParallelInitializer(registry, initExecutor);
+            read(new File(path));
+            flush();
+            parallelInit.run();
+        } finally {
+            finish();
+        }
+    }
+    
+    public XMLRegistryBuilder(List<String> paths, Properties p, Executor parseExecutor) throws Exception {
+        this(p);
+        batchExecutor = parseExecutor;
+        List<FutureTask<ConfigEvents>> parsed = new ArrayList<>();
+        for (String path : paths) {
+            final File f = new File(path);
+            FutureTask<ConfigEvents> task = new FutureTask<>(new Callable<ConfigEvents>() {
+                public ConfigEvents call() throws Exception {
+                    BootstrapProfiler.Span s = span("parse", f.getPath());
+                    try {
+                        ConfigEvents events = new ConfigEvents();
+                        parse(f, events, newDocument(), new ArrayList<File>());
+                        return events.finish();
+                    } finally {
+                        end(s);
+                    }
+                }
+            });
+            parseExecutor.execute(task);
+            parsed.add(task);
+        }
+        try {
+            for (FutureTask<ConfigEvents> task : parsed)
+                replay(get(task));
+            flush();
+        } finally {
+            finish();
+        }
+    }
+    
+    private static <T> T get(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception)
+                throw (Exception)t;
+            throw e;
+        }
+    }
+    
+    private void loadConfigurators() throws Exception {
+        ServiceLoader<Configurator> loader = ServiceLoader.load(Configurator.class, Thread.currentThread().getContextClassLoader());
+        for (Iterator<ServiceLoader.Provider<Configurator>> it = loader.stream().iterator(); it.hasNext();) {
+            Class<? extends Configurator> c = it.next().type();
+            ConfiguratorTag tag = c.getAnnotation(ConfiguratorTag.class);
+            if (tag != null)
+                configuratorMap.put(tag.value(), registry.registerProvider(c));
         }
     }
+    
+    public void flush() throws Exception {
+        if (batches.isEmpty())
+            return;
+        Map<String, List<Element>> pending = batches;
+        batches = new LinkedHashMap<>();
+        batchDocuments = new HashMap<>();
+        if (batchExecutor == null || pending.size() == 1) {
+            for (Map.Entry<String, List<Element>> e : pending.entrySet()) {
+                BootstrapProfiler.Span s = span("batch", e.getKey());
+                try {
+                    ((BatchConfigurator)configuratorMap.get(e.getKey())).configure(e.getValue());
+                } finally {
+                    end(s);
+                }
+            }
+            return;
+        }
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<Element>> e : pending.entrySet()) {
+            final String tag = e.getKey();
+            final BatchConfigurator configurator = (BatchConfigurator)configuratorMap.get(tag);
+            final List<Element> elements = e.getValue();
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    BootstrapProfiler.Span s = span("batch", tag);
+                    try {
+                        configurator.configure(elements);
+                    } finally {
+                        end(s);
+                    }
+                    return null;
+                }
+            });
+            batchExecutor.execute(task);
+            tasks.add(task);
+        }
+        for (FutureTask<Void> task : tasks)
+            get(task);
+    }
+    
+    private Document documentFor(String tag) throws Exception {
+        if (!(configuratorMap.get(tag) instanceof BatchConfigurator)) {
+            if (document == null)
+                document = newDocument();
+            return document;
+        }
+        Document doc = batchDocuments.get(tag);
+        if (doc == null) {
+            doc = newDocument();
+            batchDocuments.put(tag, doc);
+        }
+        return doc;
+    }
+    
+    private static void parse(File f, ConfigEvents events, Document scratch, List<File> including) throws Exception {
+        File canonical = enter(f, including);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            XMLStreamReader r = createReader(f, in);
+            try {
+                r.nextTag();
+                while (r.hasNext()) {
+                    int event = r.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String tag = qualifiedName(r.getPrefix(), r.getLocalName());
+                        if (tag.equals("include")) {
+                            parse(include(f, attribute(r, "file")), events, scratch, including);
+                            skipElement(r);
+                        } else if (record(events, tag, r)) {
+                            skipElement(r);
+                        } else {
+                            events.element(tag, readElement(r, scratch));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        break;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        including.remove(canonical);
+    }
+    
+    private static File enter(File f, Collection<File> including) throws IOException, RegistryException {
+        File canonical = f.getCanonicalFile();
+        if (including.contains(canonical))
+            throw new RegistryException("include cycle at " + f);
+        including.add(canonical);
+        return canonical;
+    }
+    
+    static File include(File from, String name) throws RegistryException {
+        if (name.equals(""))
+            throw new RegistryException("include without file attribute in " + from);
+        File f = new File(name);
+        return f.isAbsolute() ? f : new File(from.getAbsoluteFile().getParentFile(), name);
+    }
+    
+    public XMLRegistryBuilder(String path, Properties p, File snapshotFile) throws Exception {
+        long fingerprint = RegistrySnapshot.fingerprint(p);
+        Registry restored = RegistrySnapshot.restore(snapshotFile, fingerprint);
+        if (restored != null) {
+            registry = restored;
+            fromSnapshot = true;
+            return;
+        }
+        start(p);
+        try {
+            recording = new RegistrySnapshot();
+            registry.recordPlans(recording.planned());
+            try {
+                read(new File(path));
+                flush();
+            } finally {
+                registry.recordPlans(null);
+            }
+            recording.save(snapshotFile, fingerprint, registry);
+            recording = null;
+        } finally {
+            finish();
+        }
+    }
+    
+    private void replay(ConfigEvents s) throws Exception {
+        while (true) {
+            switch (s.next()) {
+            case ConfigEvents.PROPERTY:
+                property(s.string(), s.string());
+                break;
+            case ConfigEvents.INSTANCE:
+                configInstance(s.string(), s.string(), s.string());
+                break;
+            case ConfigEvents.CONFIGURATOR:
+                flush();
+                configurator(s.string(), s.string());
+                break;
+            case ConfigEvents.INIT:
+                init(forName(s.string()));
+                break;
+            case ConfigEvents.ELEMENT:
+                String tag = s.string();
+                configWithConfigurator(tag, s.element(documentFor(tag)));
+                break;
+            default:
+                return;
+            }
+        }
+    }
+    
+    private static XMLStreamReader createReader(File f, InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory.createXMLStreamReader(f.toURI().toString(), in);
+    }
+    
+    private void read(File f) throws Exception {
+        File canonical = enter(f, reading);
+        if (recording != null)
+            recording.file(f);
+        BootstrapProfiler.Span s = span("load", f.getPath());
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            XMLStreamReader r = createReader(f, in);
+            try {
+                r.nextTag();
+                while (r.hasNext()) {
+                    int event = r.next();
+                    if (event == XMLStreamConstants.START_ELEMENT)
+                        configElement(r);
+                    else if (event == XMLStreamConstants.END_ELEMENT)
+                        break;
+                }
+            } finally {
+                r.close();
+            }
+        } finally {
+            end(s);
+        }
+        reading.remove(canonical);
+    }
   
     private void addProperties(Properties p) throws RegistryException {
         Enumeration<?> keys = p.propertyNames();
@@ -42,94 +311,192 @@ public class XMLRegistryBuilder {
         }
     }
     
-    private void configElement(Element e) throws Exception {
-        String tag = e.getNodeName();
+    private void configElement(XMLStreamReader r) throws Exception {
+        String tag = qualifiedName(r.getPrefix(), r.getLocalName());
+        if (parallelInit != null && !tag.equals("init") && !tag.equals("include") && !tag.equals("configurator"))
+            parallelInit.run();
         
         switch (tag) {
         case "property": 
-            configProperty(e);
+            property(attribute(r, "name"), attribute(r, "value"));
             break;
         case "instance":
-            configInstance(e);
+            configInstance(attribute(r, "name"), attribute(r, "class"), attribute(r, "builder"));
             break;
         case "configurator":
-            configConfigurator(e);
+            flush();
+            configurator(attribute(r, "tag"), attribute(r, "class"));
             break;
         case "init":
-            configInit(e);
+            init(forName(attribute(r, "class")));
             break;
+        case "include":
+            read(include(reading.peekLast(), attribute(r, "file")));
+            break;
+        default:
+            configWithConfigurator(tag, readElement(r, documentFor(tag)));
+            return;
+        }
+        skipElement(r);
+    }
+    
+    private static boolean record(ConfigEvents events, String tag, XMLStreamReader r) throws IOException {
+        switch (tag) {
+        case "property":
+            events.record(ConfigEvents.PROPERTY, attribute(r, "name"), attribute(r, "value"));
+            return true;
+        case "instance":
+            events.record(ConfigEvents.INSTANCE, attribute(r, "name"), attribute(r, "class"), attribute(r, "builder"));
+            return true;
+        case "configurator":
+            events.record(ConfigEvents.CONFIGURATOR, attribute(r, "tag"), attribute(r, "class"));
+            return true;
+        case "init":
+            events.record(ConfigEvents.INIT, attribute(r, "class"));
+            return true;
         default:
-            configWithConfigurator(tag, e);
+            return false;
+        }
+    }
+    
+    private static String attribute(XMLStreamReader r, String name) {
+        String value = r.getAttributeValue(null, name);
+        return (value == null) ? "" : value;
+    }
+    
+    private static String qualifiedName(String prefix, String localName) {
+        return (prefix == null || prefix.equals("")) ? localName : prefix + ":" + localName;
+    }
+    
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+    
+    private static Element readElement(XMLStreamReader r, Document document) throws Exception {
+        Element e = document.createElement(qualifiedName(r.getPrefix(), r.getLocalName()));
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name = qualifiedName(r.getAttributePrefix(i), r.getAttributeLocalName(i));
+            e.setAttribute(name, r.getAttributeValue(i));
+        }
+        while (true) {
+            switch (r.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                e.appendChild(readElement(r, document));
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                e.appendChild(document.createTextNode(r.getText()));
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                return e;
+            }
         }
     }
     
     private void configWithConfigurator(String tag, Element e) throws Exception {
         Configurator configurator = configuratorMap.get(tag); 
-        if (configurator == null) 
+        if (configurator == null) {
+            flush();
             configurator = activateConfigurator(tag);
-        if (configurator != null) 
+        }
+        if (configurator instanceof BatchConfigurator) {
+            Document doc = documentFor(tag);
+            if (e.getOwnerDocument() != doc)
+                e = (Element)doc.importNode(e, true);
+            List<Element> batch = batches.get(tag);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(tag, batch);
+            }
+            batch.add(e);
+        } else if (configurator != null) {
+            flush();
             configurator.configure(e);
-        else
+        } else
             throw new RegistryException("configuration element can not be processed: " + tag);        
     }
     
     private Configurator activateConfigurator(String tag) throws Exception {
         String configuratorName = notActiveConfiguirators.get(tag);
         if (configuratorName != null) {
-            addConfigurator(tag, configuratorName);
+            activateConfigurator(tag, forName(configuratorName));
             return configuratorMap.get(tag); 
         }
         return null;
     }
     
-    @SuppressWarnings("unchecked")
-    private void addConfigurator(String tag, String configuratorName) throws Exception {
-        Class c = Class.forName(configuratorName);
-        Configurator configurator = registry.registerProvider(c);
-        configuratorMap.put(tag, configurator);
+    public void activateConfigurator(String tag, Class c) throws Exception {
+        BootstrapProfiler.Span s = span("configurator", tag);
+        try {
+            Configurator configurator = (Configurator)registry.registerProvider(c);
+            configuratorMap.put(tag, configurator);
+        } finally {
+            end(s);
+        }
+    }
+    
+    public void configure(String tag, Element e) throws Exception {
+        configWithConfigurator(tag, e);
     }
     
-    @SuppressWarnings("unchecked")
     public void configInit(Element e) throws Exception {
         String initClass = e.getAttribute("class");
-          Class bc = Class.forName(initClass);
-          Initializer init = registry.registerProvider(bc);
-          //Initializer init = (Initializer)bc.newInstance();
-          //registry.decorateInstance(init);
-          init.init();
+        init(forName(initClass));
     }
     
-    private String replaceParams(String s) throws Exception {
-        Matcher m = varPattern.matcher(s);
-        if (m.find()) {
-            String var = m.group(1);
-            Object o = registry.getInstance(var);
-            if (o != null) {
-                StringBuffer sb = new StringBuffer(s.subSequence(0, m.start()));
-                sb.append(o.toString());
-                sb.append(s.substring(m.end()));
-                return sb.toString();
-            }
+    public void init(Class c) throws Exception {
+        flush();
+        if (parallelInit != null) {
+            parallelInit.addInitializer(c);
+            return;
         }
-        return s;
+        BootstrapProfiler.Span s = span("initializer", c.getName());
+        try {
+            registry.init(c, registry.registerProvider(c));
+        } finally {
+            end(s);
+        }
+    }
+    
+    private String replaceParams(String s) throws Exception {
+        return Template.compile(s).render(registry);
     }
     
     public void configProperty(Element e) throws Exception {    
         String name = e.getAttribute("name");
         String value = e.getAttribute("value");
-        value = replaceParams(value);
-        registry.registerInstance(name, value);
+        property(name, value);
+    }
+    
+    public void property(String name, String value) throws Exception {
+        flush();
+        BootstrapProfiler.Span s = span("property", name);
+        try {
+            value = replaceParams(value);
+            registry.registerInstance(name, value);
+        } finally {
+            end(s);
+        }
     }
     
     public void configInstance(Element e) throws Exception {
-        String name = e.getAttribute("name");
-        String className = e.getAttribute("class");
+        configInstance(e.getAttribute("name"), e.getAttribute("class"), e.getAttribute("builder"));
+    }
+    
+    private void configInstance(String name, String className, String builder) throws Exception {
         if (className != null && !className.equals("")) {
-            registerImplementation(name, className);
+            instance(name, forName(className));
         } else {
-            String builder = e.getAttribute("builder");
             if (builder != null && !builder.equals(""))
-                buildInstance(name, builder);
+                builder(name, forName(builder));
             else
                 throw new RegistryException("no implementation for key" + name);
         }
@@ -138,27 +505,102 @@ public class XMLRegistryBuilder {
     public void configConfigurator(Element e) throws Exception {
         String tag = e.getAttribute("tag");
         String className = e.getAttribute("class");
+        configurator(tag, className);
+    }
+    
+    public void configurator(String tag, String className) {
+        configuratorMap.remove(tag);
         notActiveConfiguirators.put(tag, className);
     }
     
-    private void registerImplementation(String name, String className) throws Exception {
-        Class<?> c = Class.forName(className);
-        if (name == null)
+    public void instance(String name, Class c) throws Exception {
+        flush();
+        if (name == null) {
             registry.registerImplementation(c);
-        else
+            return;
+        }
+        BootstrapProfiler.Span s = span("instance", name + " " + c.getName());
+        try {
             registry.registerImplementation(name, c);
+            if (recording != null)
+                recording.recipe(registry.getBinding(name), RegistrySnapshot.NEW, c);
+        } finally {
+            end(s);
+        }
     }
-
-    private void buildInstance(String name, String builder) throws Exception {
-        Class<?> ibc = Class.forName(builder);
-        RegistryInstanceBuilder rib = (RegistryInstanceBuilder)registry.getInstance(ibc);
-        Object o = rib.createInstance();
+    
+    public void instance(String name, Class c, Object o) throws Exception {
+        flush();
+        BootstrapProfiler.Span s = span("instance", name + " " + c.getName());
+        try {
+            registry.registerInstance(name, o);
+            registry.track(o);
+        } finally {
+            end(s);
+        }
+    }
+    
+    public void instance(String name, Object o) throws Exception {
         if (name == null) 
             registry.registerInstance(o);
         else
             registry.registerInstance(name, o);
     }
 
+    public void builder(String name, Class builder) throws Exception {
+        flush();
+        BootstrapProfiler.Span s = span("builder", name + " " + builder.getName());
+        try {
+            RegistryInstanceBuilder rib = (RegistryInstanceBuilder)registry.getInstance(builder);
+            Object o = rib.createInstance();
+            if (recording != null)
+                recording.recipe(o, RegistrySnapshot.BUILDER, builder);
+            instance(name, o);
+        } finally {
+            end(s);
+        }
+    }
+    
+    private Class forName(String name) throws ClassNotFoundException {
+        BootstrapProfiler.Span s = span("forName", name);
+        try {
+            return Class.forName(name);
+        } finally {
+            end(s);
+        }
+    }
+    
+    private BootstrapProfiler.Span span(String category, String name) {
+        return (profiler == null) ? null : profiler.span(category, name);
+    }
+    
+    private static void end(BootstrapProfiler.Span s) {
+        if (s != null)
+            s.close();
+    }
+    
+    void finish() {
+        if (profiler == null)
+            return;
+        if (registry.getListener() == profiler)
+            registry.setListener(null);
+        profiler.finished();
+        profiler = null;
+    }
+    
+    public Document newDocument() throws Exception {
+        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+        return docBuilderFactory.newDocumentBuilder().newDocument();
+    }
+
+    public Map<Class<?>, Long> getInitTimes() {
+        return (parallelInit == null) ? Collections.<Class<?>, Long>emptyMap() : parallelInit.getInitTimes();
+    }
+
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
     public Registry getRegistry() {
         return registry;
     }
@@ -1,14 +1,22 @@
 import static org.junit.Assert.*;
 
-import java.util.Properties;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
-import org.junit.Test;
+import javax.inject.*;
 
-import registry.Registry;
-import registry.RegistryBuilder;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+
+import registry.*;
 
 
 public class BuilderTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    
     Registry r;
     
     public BuilderTest() throws Exception {
@@ -25,4 +33,452 @@ public class BuilderTest {
         assertNotNull(inst.email);
         assertEquals(inst.email, "abc@yahoo.com");
     }
+    
+    @Test
+    public void multipleVariableSubstitution() throws Exception {
+        assertEquals("abc@yahoo.com", r.getInstance("address"));
+    }
+    
+    @Test
+    public void customConfiguratorElement() throws Exception {
+        assertEquals("555-1234", r.getInstance("phone"));
+    }
+    
+    @Test
+    public void compiledConfiguration() throws Exception {
+        File dir = tmp.newFolder("compiled");
+        File src = new RegistryCompiler("./test/registry.xml", "test.TestRegistry").write(dir);
+        assertEquals(0, javax.tools.ToolProvider.getSystemJavaCompiler().run(null, null, null,
+                "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"), src.getPath()));
+        
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { dir.toURI().toURL() }, BuilderTest.class.getClassLoader())) {
+            CompiledRegistry compiled = (CompiledRegistry)cl.loadClass("test.TestRegistry").getConstructor().newInstance();
+            RegistryBuilder.build(compiled, new Properties());
+        }
+        Registry reg = RegistryBuilder.getRegistry();
+        
+        assertEquals("abc@yahoo.com", reg.getInstance("address"));
+        assertEquals("555-1234", reg.getInstance("phone"));
+    }
+    
+    @Test
+    public void compiledConstructorInjection() throws Exception {
+        File config = tmp.newFile("dispatch.xml");
+        write(config, "<instance name=\"dispatcher\" class=\"BuilderTest$Dispatcher\"/>");
+        File dir = tmp.newFolder("dispatch");
+        RegistryCompiler compiler = new RegistryCompiler(config.getPath(), "CompiledDispatch");
+        assertTrue(compiler.generate().contains("new BuilderTest.Dispatcher(r.getInstance(BuilderTest.Outbox.class))"));
+        File src = compiler.write(dir);
+        assertEquals(0, javax.tools.ToolProvider.getSystemJavaCompiler().run(null, null, null,
+                "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"), src.getPath()));
+        
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { dir.toURI().toURL() }, BuilderTest.class.getClassLoader())) {
+            CompiledRegistry compiled = (CompiledRegistry)cl.loadClass("CompiledDispatch").getConstructor().newInstance();
+            RegistryBuilder.build(compiled, new Properties());
+        }
+        Registry reg = RegistryBuilder.getRegistry();
+        Dispatcher dispatcher = (Dispatcher)reg.getInstance("dispatcher");
+        
+        assertSame(reg.getInstance(Outbox.class), dispatcher.outbox);
+    }
+    
+    @Test
+    public void buildFromCompiledRegistry() throws Exception {
+        RegistryBuilder.build(new CompiledRegistry() {
+            public void configure(XMLRegistryBuilder b) throws Exception {
+                b.property("email", "abc@yahoo.com");
+            }
+        }, new Properties());
+        FS inst = RegistryBuilder.getRegistry().getInstance(FS.class);
+        
+        assertEquals(inst.email, "abc@yahoo.com");
+    }
+    
+    @Test
+    public void reloadChangedEntries() throws Exception {
+        File f = tmp.newFile("reload.xml");
+        writeConfig(f, "Hello");
+        Registry reg = new XMLRegistryBuilder(f.getPath(), new Properties()).getRegistry();
+        Greeter greeter = reg.getInstance(Greeter.class);
+        Unrelated unrelated = reg.getInstance(Unrelated.class);
+        RegistryReloader reloader = new RegistryReloader(reg, f.getPath());
+        
+        assertFalse(reloader.reload());
+        writeConfig(f, "Bye");
+        assertTrue(reloader.reload());
+        
+        assertEquals("Bye world", reg.getInstance("message"));
+        assertEquals("world", reg.getInstance("target"));
+        assertEquals("Bye world", reg.getInstance(Greeter.class).message);
+        assertNotSame(greeter, reg.getInstance(Greeter.class));
+        assertSame(unrelated, reg.getInstance(Unrelated.class));
+    }
+    
+    @Test
+    public void reloadOnFileChange() throws Exception {
+        File f = tmp.newFile("watch.xml");
+        writeConfig(f, "Hello");
+        Registry reg = new XMLRegistryBuilder(f.getPath(), new Properties()).getRegistry();
+        RegistryReloader reloader = new RegistryReloader(reg, f.getPath());
+        reloader.start();
+        try {
+            writeConfig(f, "Bye");
+            for (int i = 0; i < 100 && reloader.getReloadCount() == 0; i++)
+                Thread.sleep(50);
+        } finally {
+            reloader.close();
+        }
+        
+        assertEquals("Bye world", reg.getInstance("message"));
+    }
+    
+    @Test
+    public void reloadInterfaceAndChildSingletons() throws Exception {
+        File f = tmp.newFile("reload.xml");
+        write(f, "<property name=\"target\" value=\"world\"/><property name=\"message\" value=\"Hello\"/>" +
+                "<instance class=\"Unrelated\"/>");
+        Registry reg = new XMLRegistryBuilder(f.getPath(), new Properties()).getRegistry();
+        reg.registerImplementation(Greeting.class, GreetingImpl.class);
+        Registry child = reg.fork();
+        Greeter greeter = child.getInstance(Greeter.class);
+        child.getInstance(Announcer.class);
+        RegistryReloader reloader = new RegistryReloader(reg, f.getPath());
+        
+        write(f, "<property name=\"target\" value=\"world\"/><property name=\"message\" value=\"Bye\"/>" +
+                "<instance class=\"Unrelated\"/>");
+        assertTrue(reloader.reload());
+        
+        assertEquals("Bye", reg.getInstance(Greeting.class).message());
+        assertSame(reg.getInstance(GreetingImpl.class), reg.getInstance(Greeting.class));
+        assertEquals("Bye", child.getInstance(Greeter.class).message);
+        assertNotSame(greeter, child.getInstance(Greeter.class));
+        assertEquals("Bye", child.getInstance(Announcer.class).greeting.message());
+    }
+    
+    @Test
+    public void reloadFailuresReachListener() throws Exception {
+        File f = tmp.newFile("failing.xml");
+        writeConfig(f, "Hello");
+        Registry reg = new XMLRegistryBuilder(f.getPath(), new Properties()).getRegistry();
+        RegistryMetrics metrics = new RegistryMetrics();
+        reg.setListener(metrics);
+        RegistryReloader reloader = new RegistryReloader(reg, f.getPath());
+        reloader.start();
+        try {
+            write(f, "<instance name=\"broken\"/>");
+            for (int i = 0; i < 100 && metrics.getReloadFailures() == 0; i++)
+                Thread.sleep(50);
+        } finally {
+            reloader.close();
+        }
+        
+        assertTrue(metrics.getReloadFailures() > 0);
+        assertEquals("Hello world", reg.getInstance("message"));
+    }
+    
+    @Test
+    public void reloadKeepsNewSingletons() throws Exception {
+        File f = tmp.newFile("reload.xml");
+        write(f, "<property name=\"target\" value=\"world\"/><instance name=\"sender\" class=\"GreetingImpl\"/>");
+        Registry reg = new XMLRegistryBuilder(f.getPath(), new Properties()).getRegistry();
+        RegistryReloader reloader = new RegistryReloader(reg, f.getPath());
+        
+        write(f, "<property name=\"target\" value=\"world\"/><instance name=\"sender\" class=\"Mailer\"/>");
+        assertTrue(reloader.reload());
+        
+        assertSame(reg.getInstance(Unrelated.class), ((Mailer)reg.getInstance("sender")).unrelated);
+    }
+    
+    @Test
+    public void reloadDiamondIncludes() throws Exception {
+        write(tmp.newFile("common.xml"), "");
+        write(tmp.newFile("left.xml"), "<include file=\"common.xml\"/>");
+        write(tmp.newFile("right.xml"), "<include file=\"common.xml\"/>");
+        File main = tmp.newFile("main.xml");
+        write(main, "<include file=\"left.xml\"/><include file=\"right.xml\"/><property name=\"message\" value=\"Hello\"/>");
+        Registry reg = new XMLRegistryBuilder(main.getPath(), new Properties()).getRegistry();
+        RegistryReloader reloader = new RegistryReloader(reg, main.getPath());
+        
+        write(main, "<include file=\"left.xml\"/><include file=\"right.xml\"/><property name=\"message\" value=\"Bye\"/>");
+        assertTrue(reloader.reload());
+        
+        assertEquals("Bye", reg.getInstance("message"));
+    }
+    
+    @Test
+    public void reloadWatchesNewIncludes() throws Exception {
+        File main = tmp.newFile("main.xml");
+        File extra = tmp.newFile("extra.xml");
+        write(main, "<property name=\"message\" value=\"Hello\"/>");
+        write(extra, "<property name=\"target\" value=\"world\"/>");
+        Registry reg = new XMLRegistryBuilder(main.getPath(), new Properties()).getRegistry();
+        RegistryReloader reloader = new RegistryReloader(reg, main.getPath());
+        reloader.start();
+        try {
+            write(main, "<include file=\"extra.xml\"/><property name=\"message\" value=\"Hello\"/>");
+            for (int i = 0; i < 100 && reloader.getReloadCount() == 0; i++)
+                Thread.sleep(50);
+            write(extra, "<property name=\"target\" value=\"moon\"/>");
+            for (int i = 0; i < 100 && reloader.getReloadCount() < 2; i++)
+                Thread.sleep(50);
+        } finally {
+            reloader.close();
+        }
+        
+        assertEquals("moon", reg.getInstance("target"));
+    }
+    
+    @Test
+    public void snapshotRestart() throws Exception {
+        File f = tmp.newFile("snapshot.xml");
+        File snapshot = new File(tmp.getRoot(), "snapshot.bin");
+        String entries = "<property name=\"target\" value=\"world\"/>" +
+                "<instance name=\"mailer\" class=\"Mailer\"/><init class=\"Warmup\"/>";
+        write(f, entries + "<property name=\"message\" value=\"Hello ${target}\"/>");
+        
+        assertFalse(new XMLRegistryBuilder(f.getPath(), new Properties(), snapshot).isFromSnapshot());
+        int inits = Warmup.inits;
+        XMLRegistryBuilder warm = new XMLRegistryBuilder(f.getPath(), new Properties(), snapshot);
+        assertTrue(warm.isFromSnapshot());
+        assertEquals(inits, Warmup.inits);
+        
+        Registry reg = warm.getRegistry();
+        assertEquals("Hello world", reg.getInstance("message"));
+        Mailer mailer = (Mailer)reg.getInstance("mailer");
+        assertSame(mailer, reg.getInstance("mailer"));
+        assertSame(reg.getInstance(Unrelated.class), mailer.unrelated);
+        assertEquals("world", reg.getInstance(Warmup.class).target);
+        assertEquals(inits + 1, Warmup.inits);
+        
+        write(f, entries + "<property name=\"message\" value=\"Bye ${target}\"/>");
+        XMLRegistryBuilder changed = new XMLRegistryBuilder(f.getPath(), new Properties(), snapshot);
+        assertFalse(changed.isFromSnapshot());
+        assertEquals("Bye world", changed.getRegistry().getInstance("message"));
+    }
+    
+    @Test
+    public void includeAndParallelLoad() throws Exception {
+        File dir = tmp.newFolder("modules");
+        write(new File(dir, "db.xml"), "<property name=\"db\" value=\"jdbc\"/>");
+        write(new File(dir, "app.xml"), "<include file=\"db.xml\"/><property name=\"url\" value=\"${db}:app\"/>");
+        write(new File(dir, "web.xml"), "<property name=\"port\" value=\"8080\"/>" +
+                "<configurator tag=\"prop\" class=\"registry.PropertyConfigurator\"/><prop name=\"phone\" value=\"555-1234\"/>");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Registry reg = new XMLRegistryBuilder(Arrays.asList(new File(dir, "app.xml").getPath(),
+                    new File(dir, "web.xml").getPath()), new Properties(), executor).getRegistry();
+            
+            assertEquals("jdbc:app", reg.getInstance("url"));
+            assertEquals(8080, reg.getInt("port"));
+            assertEquals("555-1234", reg.getInstance("phone"));
+            
+            try {
+                new XMLRegistryBuilder(Arrays.asList(new File(dir, "app.xml").getPath(),
+                        new File(dir, "db.xml").getPath()), new Properties(), executor);
+                fail("duplicate key across files");
+            } catch (RegistryException e) {
+                assertTrue(e.getMessage().contains("db"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void parallelInitKeepsDocumentOrder() throws Exception {
+        File config = tmp.newFile("ordered.xml");
+        write(config, "<init class=\"DsnInit\"/><property name=\"url\" value=\"${dsn}/app\"/>");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Registry reg = new XMLRegistryBuilder(config.getPath(), new Properties(), executor).getRegistry();
+            
+            assertEquals("db://primary/app", reg.getInstance("url"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void serviceLoadedBatchConfigurator() throws Exception {
+        File dir = tmp.newFolder("spi");
+        File services = new File(dir, "META-INF/services");
+        services.mkdirs();
+        try (Writer w = new FileWriter(new File(services, "registry.Configurator"))) {
+            w.write(EntryConfigurator.class.getName() + "\n");
+        }
+        File config = new File(dir, "entries.xml");
+        write(config, "<entry name=\"a\" value=\"1\"/><entry name=\"b\" value=\"2\"/>" +
+                "<property name=\"p\" value=\"${a}${b}\"/><entry name=\"c\" value=\"3\"/>");
+        
+        Thread t = Thread.currentThread();
+        ClassLoader previous = t.getContextClassLoader();
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { dir.toURI().toURL() }, getClass().getClassLoader())) {
+            t.setContextClassLoader(cl);
+            EntryConfigurator.batches = 0;
+            Registry reg = new XMLRegistryBuilder(config.getPath(), new Properties()).getRegistry();
+            
+            assertEquals(2, EntryConfigurator.batches);
+            assertEquals("12", reg.getInstance("p"));
+            assertEquals("3", reg.getInstance("c"));
+        } finally {
+            t.setContextClassLoader(previous);
+        }
+    }
+    
+    @Test
+    public void bootstrapProfile() throws Exception {
+        File config = tmp.newFile("profiled.xml");
+        write(config, "<property name=\"target\" value=\"world\"/><instance name=\"mailer\" class=\"Mailer\"/>");
+        
+        BootstrapProfiler profiler = BootstrapProfiler.enable();
+        Registry reg;
+        try {
+            reg = new XMLRegistryBuilder(config.getPath(), new Properties()).getRegistry();
+        } finally {
+            BootstrapProfiler.disable();
+        }
+        assertNull(reg.getListener());
+        
+        StringWriter trace = new StringWriter();
+        profiler.writeChromeTrace(trace);
+        assertTrue(trace.toString().startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(trace.toString().contains("\"name\":\"Unrelated\",\"cat\":\"singleton\""));
+        assertTrue(trace.toString().contains("\"chain\":\"mailer Mailer\""));
+        
+        String summary = profiler.summary();
+        assertTrue(summary.contains("load " + config.getPath()));
+        assertTrue(summary.contains("forName Mailer"));
+        assertTrue(summary.contains("instance mailer Mailer"));
+        assertTrue(summary.matches("(?s).*singleton Unrelated .* via mailer Mailer.*"));
+    }
+    
+    @Test
+    public void profilerDetachedOnFailure() throws Exception {
+        File config = tmp.newFile("failing.xml");
+        write(config, "<instance name=\"spy\" builder=\"RegistrySpy\"/><instance name=\"bad\" class=\"NoSuchClass\"/>");
+        
+        BootstrapProfiler.enable();
+        try {
+            new XMLRegistryBuilder(config.getPath(), new Properties());
+            fail();
+        } catch (ClassNotFoundException e) {
+        } finally {
+            BootstrapProfiler.disable();
+        }
+        assertNull(RegistrySpy.registry.getListener());
+    }
+    
+    @ConfiguratorTag("entry")
+    public static class EntryConfigurator implements BatchConfigurator {
+        static int batches;
+        
+        @Inject Registry registry;
+        
+        public void configure(Element e) throws Exception {
+            configure(Arrays.asList(e));
+        }
+        
+        public void configure(List<Element> elements) throws Exception {
+            batches++;
+            for (Element e : elements)
+                registry.registerInstance(e.getAttribute("name"), e.getAttribute("value"));
+        }
+    }
+    
+    @Singleton
+    public static class Outbox {
+    }
+    
+    public static class Dispatcher {
+        final Outbox outbox;
+        
+        @Inject
+        public Dispatcher(Outbox outbox) {
+            this.outbox = outbox;
+        }
+    }
+    
+    private static void write(File f, String elements) throws IOException {
+        try (Writer w = new FileWriter(f)) {
+            w.write("<registry>" + elements + "</registry>\n");
+        }
+    }
+    
+    private static void writeConfig(File f, String greeting) throws IOException {
+        try (Writer w = new FileWriter(f)) {
+            w.write("<registry>\n");
+            w.write("  <property name=\"target\" value=\"world\"/>\n");
+            w.write("  <property name=\"greeting\" value=\"" + greeting + "\"/>\n");
+            w.write("  <property name=\"message\" value=\"${greeting} ${target}\"/>\n");
+            w.write("</registry>\n");
+        }
+    }
+}
+
+@Singleton
+class Greeter {
+    @Inject @Named("message") String message;
+}
+
+interface Greeting {
+    String message();
+}
+
+@Singleton
+class GreetingImpl implements Greeting {
+    @Inject @Named("message") String message;
+    
+    public String message() {
+        return message;
+    }
+}
+
+@Singleton
+class Announcer {
+    @Inject Greeting greeting;
+}
+
+class RegistrySpy implements RegistryInstanceBuilder<Object> {
+    static Registry registry;
+    
+    @Inject Registry r;
+    
+    public Object createInstance() {
+        registry = r;
+        return "spy";
+    }
+}
+
+@Singleton
+class Unrelated {
+    @Inject @Named("target") String target;
+}
+
+class DsnInit implements Initializer {
+    @Provides @Named("dsn") String dsn = "db://primary";
+    
+    public void init() throws Exception {
+    }
+}
+
+@Singleton
+class Warmup implements Initializer {
+    static int inits;
+    
+    @Inject @Named("target") String target;
+    
+    public void init() throws Exception {
+        inits++;
+    }
+}
+
+class Mailer {
+    Unrelated unrelated;
+    
+    @Inject
+    public Mailer(Unrelated unrelated) {
+        this.unrelated = unrelated;
+    }
 }
@@ -1,11 +1,22 @@
 import static org.junit.Assert.*;
 
+import java.io.*;
+import java.lang.ref.*;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import registry.Registry;
+import registry.*;
 
 
 public class ChainTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    
     @Test
     public void injectInstanceFromParrentRegistry() throws Exception {
         Registry pr = new Registry(); 
@@ -34,4 +45,148 @@ public class ChainTest {
         assertNotNull(inst);
         assertSame(a2, inst.aField);
     }
+    
+    @Test
+    public void parentChangeVisibleInDeepChain() throws Exception {
+        Registry root = new Registry();
+        Registry r = root;
+        for (int i = 0; i < 8; i++)
+            r = new Registry(r);
+        
+        A a = new A();
+        root.registerInstance(a);
+        root.registerInstance("email", "abc@yahoo.com");
+        
+        assertSame(a, r.getInstance(B.class).aField);
+        assertEquals("abc@yahoo.com", r.getInstance("email"));
+        
+        root.deregisterInstance(a);
+        root.removeInstance("email");
+        
+        assertNotSame(a, r.getInstance(B.class).aField);
+        assertNull(r.getInstance("email"));
+    }
+    
+    @Test
+    public void shadowingSurvivesParentChange() throws Exception {
+        Registry root = new Registry();
+        Registry middle = new Registry(root);
+        A a1 = new A();
+        middle.registerInstance(a1);
+        Registry r = new Registry(middle);
+        
+        A a2 = new A();
+        root.registerInstance(a2);
+        
+        assertSame(a1, r.getInstance(B.class).aField);
+    }
+    
+    @Test
+    public void pooledForkIsReset() throws Exception {
+        Registry pr = new Registry();
+        A a = new A();
+        pr.registerInstance(a);
+        RegistryPool pool = new RegistryPool(pr, 4);
+        
+        Registry r = pool.acquire();
+        r.registerInstance("user", "alice");
+        r.registerInstance(new A());
+        pool.release(r);
+        
+        Registry again = pool.acquire();
+        assertSame(r, again);
+        assertNull(again.getInstance("user"));
+        assertSame(a, again.getInstance(B.class).aField);
+    }
+    
+    @Test
+    public void typedPropertyFromParentRegistry() throws Exception {
+        Registry pr = new Registry();
+        pr.registerInstance("port", "8080");
+        pr.registerInstance("bad", "eighty");
+        
+        Registry r = pr.fork();
+        assertEquals(8080, r.getInt("port"));
+        r.registerInstance("port", "9090");
+        assertEquals(9090, r.getInt("port"));
+        assertEquals(8080, pr.getInt("port"));
+        try {
+            r.getLong("bad");
+            fail("invalid long accepted");
+        } catch (RegistryException e) {
+            assertTrue(e.getMessage().contains("bad"));
+        }
+    }
+    
+    @Test
+    public void typedPropertySuffixes() throws Exception {
+        Registry r = new Registry();
+        r.registerInstance("heap", "5mb");
+        r.registerInstance("buffer", "64k");
+        r.registerInstance("idle", "5m");
+        r.registerInstance("poll", "250");
+        
+        assertEquals(5L << 20, r.getLong("heap"));
+        assertEquals(64L << 10, r.getLong("buffer"));
+        assertEquals(5, r.getDuration("idle").toMinutes());
+        assertEquals(250, r.getLong("poll"));
+        assertEquals(250, r.getDuration("poll").toMillis());
+        try {
+            r.getLong("idle");
+            fail("duration accepted as size");
+        } catch (RegistryException e) {
+            assertTrue(e.getMessage().contains("idle"));
+        }
+        try {
+            r.getDuration("heap");
+            fail("size accepted as duration");
+        } catch (RegistryException e) {
+            assertTrue(e.getMessage().contains("heap"));
+        }
+    }
+    
+    @Test
+    public void pluginClassLoaderNotPinned() throws Exception {
+        Registry root = new Registry();
+        root.registerInstance("name", "plugin");
+        File dir = tmp.newFolder("plugin");
+        ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+        WeakReference<ClassLoader> loader = usePlugin(root, dir, queue);
+        
+        assertTrue(collected(loader, queue));
+        assertEquals("plugin", root.getInstance("name"));
+        assertTrue(root.validate().isEmpty());
+    }
+    
+    private static boolean collected(Reference<?> ref, ReferenceQueue<?> queue) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            System.gc();
+            if (queue.remove(100) == ref)
+                return true;
+        }
+        return false;
+    }
+    
+    private static WeakReference<ClassLoader> usePlugin(Registry root, File dir, ReferenceQueue<ClassLoader> queue) throws Exception {
+        File src = new File(dir, "Plugin.java");
+        try (Writer w = new FileWriter(src)) {
+            w.write("@javax.inject.Singleton public class Plugin implements Runnable {\n" +
+                    "    @javax.inject.Inject @javax.inject.Named(\"name\") public String name;\n" +
+                    "    public void run() { }\n" +
+                    "}\n");
+        }
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null,
+                "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"), src.getPath()));
+        
+        URLClassLoader cl = new URLClassLoader(new URL[] { dir.toURI().toURL() }, ChainTest.class.getClassLoader());
+        Class<?> c = cl.loadClass("Plugin");
+        root.registerImplementation(c);
+        Registry child = root.fork();
+        assertSame(child.getInstance(c), child.getInstance(c));
+        child.registerImplementation(Runnable.class, c);
+        assertSame(child.getInstance(c), child.getInstance(Runnable.class));
+        cl.close();
+        return new WeakReference<ClassLoader>(cl, queue);
+    }
 }
@@ -0,0 +1,242 @@
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.*;
+
+import org.junit.Test;
+
+import registry.*;
+
+
+public class ConcurrencyTest {
+    static final int THREADS = 64;
+    
+    @Test
+    public void singletonCreatedOnce() throws Exception {
+        final Registry r = new Registry();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<SlowSingleton>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<SlowSingleton>() {
+                public SlowSingleton call() throws Exception {
+                    start.await();
+                    return r.getInstance(SlowSingleton.class);
+                }
+            }));
+        }
+        start.countDown();
+        
+        SlowSingleton first = results.get(0).get();
+        for (Future<SlowSingleton> f : results)
+            assertSame(first, f.get());
+        assertEquals(1, SlowSingleton.created.get());
+        executor.shutdown();
+    }
+    
+    @Test
+    public void concurrentRegistration() throws Exception {
+        final Registry r = new Registry();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final String key = "key" + i;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    r.registerInstance(key, key);
+                    return r.getInstance(key);
+                }
+            }));
+        }
+        for (int i = 0; i < THREADS; i++)
+            assertEquals("key" + i, results.get(i).get());
+        executor.shutdown();
+    }
+    
+    @Test
+    public void registerWhileForking() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final Registry r = new Registry().fork();
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    final int id = i;
+                    results.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            start.await();
+                            if (id % 2 == 0)
+                                return r.fork();
+                            for (int k = 0; k < 20; k++)
+                                r.registerInstance("key" + id + "." + k, "value" + k);
+                            return null;
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<?> f : results)
+                    f.get();
+                
+                Registry child = r.fork();
+                for (int i = 1; i < 8; i += 2)
+                    for (int k = 0; k < 20; k++)
+                        assertEquals("value" + k, child.fork().getInstance("key" + i + "." + k));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void parallelInitializationRespectsDependencies() throws Exception {
+        Registry r = new Registry();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ParallelInitializer pi = new ParallelInitializer(r, executor);
+        pi.addInitializer(TopSingleton.class);
+        pi.addInitializer(LeafSingleton.class);
+        Map<Class<?>, Long> times = pi.run();
+        executor.shutdown();
+        
+        assertEquals(2, times.size());
+        TopSingleton top = r.getInstance(TopSingleton.class);
+        assertSame(r.getInstance(LeafSingleton.class), top.leaf);
+        assertTrue(top.leafInitialized);
+    }
+    
+    @Test
+    public void parallelInitializationWaitsForRunningTasksOnFailure() throws Exception {
+        Registry r = new Registry();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ParallelInitializer pi = new ParallelInitializer(r, executor);
+            pi.addInitializer(SlowInit.class);
+            pi.addInitializer(BrokenInit.class);
+            pi.addInitializer(AfterBrokenInit.class);
+            pi.run();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(SlowInit.finished);
+        assertFalse(AfterBrokenInit.ran);
+    }
+    
+    @Test
+    public void awaitReadinessOfSubset() throws Exception {
+        Registry r = new Registry();
+        CompletableFuture<Void> ready = r.whenReady(AsyncConsumer.class);
+        AsyncPool pool = r.getInstance(AsyncPool.class);
+        
+        assertNotNull(r.getInstance(AsyncConsumer.class).pool);
+        assertFalse(ready.isDone());
+        assertTrue(r.whenReady(LeafSingleton.class).isDone());
+        pool.connected.complete(null);
+        r.awaitReady(1, TimeUnit.SECONDS, AsyncConsumer.class);
+        assertTrue(ready.isDone());
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void parallelInitializationDetectsCycles() throws Exception {
+        Registry r = new Registry();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ParallelInitializer pi = new ParallelInitializer(r, executor);
+            pi.addInitializer(CycleA.class);
+            pi.run();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
+
+@Singleton
+class LeafSingleton implements Initializer {
+    volatile boolean initialized;
+    
+    public void init() throws Exception {
+        Thread.sleep(10);
+        initialized = true;
+    }
+}
+
+@Singleton
+class TopSingleton implements Initializer {
+    @Inject LeafSingleton leaf;
+    boolean leafInitialized;
+    
+    public void init() throws Exception {
+        leafInitialized = leaf.initialized;
+    }
+}
+
+class SlowInit implements Initializer {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static volatile boolean finished;
+    
+    public void init() throws Exception {
+        started.countDown();
+        Thread.sleep(100);
+        finished = true;
+    }
+}
+
+@Singleton
+class BrokenInit implements Initializer {
+    public void init() throws Exception {
+        SlowInit.started.await(5, TimeUnit.SECONDS);
+        throw new IllegalStateException("broken");
+    }
+}
+
+@Singleton
+class AfterBrokenInit implements Initializer {
+    static volatile boolean ran;
+    
+    @Inject BrokenInit broken;
+    
+    public void init() throws Exception {
+        ran = true;
+    }
+}
+
+@Singleton
+class CycleA {
+    @Inject CycleB b;
+}
+
+@Singleton
+class CycleB {
+    @Inject CycleA a;
+}
+
+@Singleton
+class SlowSingleton {
+    static final AtomicInteger created = new AtomicInteger();
+    
+    @Inject A aField;
+    
+    public SlowSingleton() throws InterruptedException {
+        created.incrementAndGet();
+        Thread.sleep(20);
+    }
+}
+
+@Singleton
+class AsyncPool implements AsyncInitializer {
+    final CompletableFuture<Void> connected = new CompletableFuture<>();
+    
+    public CompletableFuture<?> initAsync() {
+        return connected;
+    }
+}
+
+@Singleton
+class AsyncConsumer {
+    @Inject AsyncPool pool;
+}
@@ -1,12 +1,19 @@
 import static org.junit.Assert.*;
 
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
 import javax.inject.*;
+import javax.tools.*;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 
 import registry.*;
 
 public class MainTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
     Registry r;
 
     @Before
@@ -111,6 +118,370 @@ public class MainTest {
         assertEquals(inst.email, "mailto:" + email);
     }
     
+    @Test
+    public void methodHandleFactory() throws Exception {
+        r.setFactoryMode(FactoryMode.METHOD_HANDLES);
+        A a = new A();
+        r.registerInstance("iname", a);
+        E e = r.getInstance(E.class);
+        F f = r.getInstance(F.class);
+        
+        assertNotNull(e.aField);
+        assertSame(a, f.iname);
+    }
+    
+    @Test
+    public void factoryModesInjectAlike() throws Exception {
+        List<String> seen = new ArrayList<>();
+        for (FactoryMode mode : FactoryMode.values()) {
+            Registry m = new Registry();
+            m.setFactoryMode(mode);
+            m.registerInstance("port", "8080");
+            m.registerInstance("size", "3kb");
+            m.registerInstance("ratio", "0.5");
+            m.registerInstance("debug", "true");
+            m.registerInstance("weight", "7");
+            m.registerInstance("label", "gauge");
+            Gauge g = m.getInstance(Gauge.class);
+            
+            assertNotNull(g.a);
+            assertNotNull(g.b);
+            assertNotNull(g.b.aField);
+            seen.add(g.port + " " + g.size + " " + g.ratio + " " + g.debug + " " + g.weight + " " + g.label);
+        }
+        
+        assertEquals("8080 3072 0.5 true 7 gauge", seen.get(0));
+        assertEquals(seen.get(0), seen.get(1));
+    }
+    
+    @Test
+    public void providerInject() throws Exception {
+        P inst = r.getInstance(P.class);
+        
+        assertNotNull(inst.aProvider);
+        assertNotNull(inst.aProvider.get());
+        assertNotSame(inst.aProvider.get(), inst.aProvider.get());
+    }
+    
+    @Test
+    public void lazyInject() throws Exception {
+        r.registerImplementation(AI.class, A.class);
+        L inst = r.getInstance(L.class);
+        
+        assertNotNull(inst.ai);
+        assertEquals("hello bob", inst.svc.greet("bob"));
+        assertTrue(inst.ai.equals(inst.ai));
+        assertFalse(inst.ai.equals(r.getInstance(AI.class)));
+        assertEquals(System.identityHashCode(inst.ai), inst.ai.hashCode());
+    }
+    
+    @Test
+    public void validateResolutionOrder() throws Exception {
+        r.registerImplementation(C.class);
+        List<Class<?>> order = r.validate();
+        
+        assertTrue(order.indexOf(A.class) < order.indexOf(B.class));
+        assertTrue(order.indexOf(B.class) < order.indexOf(C.class));
+    }
+    
+    @Test
+    public void preinstantiateInResolutionOrder() throws Exception {
+        RegistryMetrics metrics = new RegistryMetrics();
+        r.setListener(metrics);
+        r.registerInstance("closed", new ArrayList<String>());
+        r.registerImplementation(Service.class);
+        List<Class<?>> order = r.preinstantiate();
+        
+        assertTrue(order.indexOf(Pool.class) < order.indexOf(Service.class));
+        assertEquals(2, metrics.getSingletonCreations());
+        assertSame(r.getInstance(Pool.class), r.getInstance(Service.class).pool);
+        assertEquals(2, metrics.getSingletonCreations());
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void validateMissingNamedDependency() throws Exception {
+        r.validate(FS.class);
+    }
+    
+    @Test
+    public void validateWithoutRunningProducers() throws Exception {
+        r.registerInstance("host", "db");
+        Resources res = r.registerProvider(Resources.class);
+        r.validate(HeavyUser.class);
+        
+        assertEquals(0, res.created);
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void validateMistypedNamedDependency() throws Exception {
+        r.registerInstance("connection", 42);
+        r.validate(HeavyUser.class);
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void validateMissingDefaultImplementation() throws Exception {
+        r.validate(AI.class);
+    }
+    
+    @Test
+    public void validateCycle() throws Exception {
+        try {
+            r.validate(CycleA.class);
+            fail("cycle not detected");
+        } catch (RegistryException e) {
+            assertTrue(e.getMessage().contains("Dependency cycle"));
+        }
+    }
+    
+    @Test
+    public void metrics() throws Exception {
+        RegistryMetrics metrics = new RegistryMetrics();
+        r.setListener(metrics);
+        r.registerInstance("email", "name@yahoo.com");
+        r.getInstance(FSI.class);
+        r.getInstance(FSI.class);
+        Registry child = new Registry(r);
+        child.getInstance("email");
+        
+        assertEquals(2, metrics.getResolutionHistogram(FSI.class).getCount());
+        assertEquals(2, metrics.getPrototypeCreations());
+        assertEquals(2, metrics.getInitHistogram(FSI.class).getCount());
+        assertEquals(1, metrics.getParentLookups("email"));
+        assertEquals(3, metrics.getKeyResolutions());
+    }
+    
+    @Test
+    public void injectPrimitiveProperties() throws Exception {
+        r.registerInstance("port", "8080");
+        r.registerInstance("bufferSize", "64k");
+        r.registerInstance("enabled", "true");
+        r.registerInstance("timeout", "30s");
+        Settings inst = r.getInstance(Settings.class);
+        
+        assertEquals(8080, inst.port);
+        assertEquals(65536, inst.bufferSize);
+        assertTrue(inst.enabled);
+        assertEquals(30000, inst.timeout.toMillis());
+        assertEquals(8080, r.getInt("port"));
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void invalidPrimitiveProperty() throws Exception {
+        r.registerInstance("port", "http");
+        r.registerInstance("bufferSize", "1");
+        r.registerInstance("enabled", "true");
+        r.registerInstance("timeout", "1s");
+        r.getInstance(Settings.class);
+    }
+    
+    @Test
+    public void injectionPlanCached() throws Exception {
+        r.getInstance(B.class);
+        long misses = Registry.getPlanCacheMisses();
+        long hits = Registry.getPlanCacheHits();
+        B inst = r.getInstance(B.class);
+        
+        assertNotNull(inst.aField);
+        assertEquals(misses, Registry.getPlanCacheMisses());
+        assertTrue(Registry.getPlanCacheHits() > hits);
+    }
+    
+    @Test
+    public void lazyProducerMethods() throws Exception {
+        r.registerInstance("host", "db");
+        Resources res = r.registerProvider(Resources.class);
+        
+        assertEquals(0, res.created);
+        assertEquals("jdbc://db", r.getInstance("connection"));
+        assertSame(r.getInstance("connection"), r.getInstance("connection"));
+        assertSame(r.getInstance(Heavy.class), r.getInstance(Heavy.class));
+        assertEquals(2, res.created);
+    }
+    
+    @Test
+    public void producerCoercesNamedPrimitives() throws Exception {
+        r.registerInstance("host", "db");
+        r.registerInstance("port", "5432");
+        r.registerProvider(Endpoints.class);
+        
+        assertEquals("db:5432", r.getInstance("endpoint"));
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void producerMissingNamedPrimitive() throws Exception {
+        r.registerInstance("host", "db");
+        r.registerProvider(Endpoints.class);
+        r.getInstance("endpoint");
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void producerUnnamedPrimitive() throws Exception {
+        r.registerProvider(Retries.class);
+        r.getInstance("retries");
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void producerEmptyNamedParameter() throws Exception {
+        r.registerProvider(Labels.class);
+    }
+    
+    @Test
+    public void disposeInReverseDependencyOrder() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        Pool pool = r.getInstance(Service.class).pool;
+        r.dispose();
+        
+        assertEquals(Arrays.asList("service", "pool"), closed);
+        assertNotSame(pool, r.getInstance(Pool.class));
+    }
+    
+    @Test
+    public void disposeChildOnReset() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        Registry child = r.fork();
+        child.getInstance(Pool.class);
+        child.reset();
+        
+        assertEquals(Arrays.asList("pool"), closed);
+    }
+    
+    @Test
+    public void disposeThroughInterfaceBinding() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        r.registerImplementation(Store.class, FileStore.class);
+        r.getInstance(Indexer.class);
+        r.dispose();
+        
+        assertEquals(Arrays.asList("indexer", "store"), closed);
+    }
+    
+    @Test
+    public void disposeFailuresAreReported() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        r.getInstance(Broken.class);
+        r.getInstance(Pool.class);
+        try {
+            r.dispose();
+            fail();
+        } catch (RegistryException e) {
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("broken", e.getSuppressed()[0].getMessage());
+        }
+        assertEquals(Arrays.asList("pool"), closed);
+    }
+    
+    @Test
+    public void disposeForksWithParent() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        r.getInstance(Pool.class);
+        Registry child = r.fork();
+        child.registerImplementation(Store.class, FileStore.class);
+        child.getInstance(Indexer.class);
+        r.dispose();
+        
+        assertEquals(Arrays.asList("indexer", "store", "pool"), closed);
+    }
+    
+    @Test
+    public void disposeProducedAndNamedInstances() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        r.registerProvider(Stores.class);
+        r.registerImplementation("broken", Broken.class);
+        r.getInstance(Indexer.class);
+        try {
+            r.dispose();
+            fail();
+        } catch (RegistryException e) {
+            assertEquals("broken", e.getSuppressed()[0].getMessage());
+        }
+        
+        assertEquals(Arrays.asList("indexer", "produced"), closed);
+    }
+    
+    @Test
+    public void droppedChildIsDisposed() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        r.registerInstance("closed", closed);
+        java.lang.ref.ReferenceQueue<Registry> queue = new java.lang.ref.ReferenceQueue<>();
+        java.lang.ref.WeakReference<Registry> child = useChild(r, queue);
+        long deadline = System.nanoTime() + 10000000000L;
+        boolean collected = false;
+        while (!collected && System.nanoTime() < deadline) {
+            System.gc();
+            collected = queue.remove(100) == child;
+        }
+        while (collected && closed.isEmpty() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        
+        assertTrue(collected);
+        assertEquals(Arrays.asList("resource"), closed);
+    }
+    
+    private static java.lang.ref.WeakReference<Registry> useChild(Registry parent,
+            java.lang.ref.ReferenceQueue<Registry> queue) throws Exception {
+        Registry child = parent.fork();
+        assertNotNull(child.getInstance(ProvidedResource.class).a.get());
+        return new java.lang.ref.WeakReference<>(child, queue);
+    }
+    
+    @Test
+    public void compileTimeIndex() throws Exception {
+        File dir = tmp.newFolder("index");
+        File src = new File(dir, "Indexed.java");
+        try (Writer w = new FileWriter(src)) {
+            w.write("@javax.inject.Singleton public class Indexed implements IndexedApi {\n" +
+                    "    @javax.inject.Inject @javax.inject.Named(\"email\") public String email;\n" +
+                    "}\n" +
+                    "@registry.Default(Indexed.class) interface IndexedApi { }\n");
+        }
+        File more = new File(dir, "IndexedOwner.java");
+        try (Writer w = new FileWriter(more)) {
+            w.write("@javax.inject.Singleton public class IndexedOwner {\n" +
+                    "    public static int closed;\n" +
+                    "    @javax.inject.Inject private IndexedApi api;\n" +
+                    "    @javax.inject.Inject private javax.inject.Provider<Indexed> provider;\n" +
+                    "    public Object api() { return api; }\n" +
+                    "    public Object provided() { return provider.get(); }\n" +
+                    "    @registry.PreDestroy private void close() { closed++; }\n" +
+                    "}\n");
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, javac.run(null, null, null, "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"),
+                "-processor", "registry.RegistryIndexProcessor", src.getPath()));
+        assertEquals(0, javac.run(null, null, null, "-d", dir.getPath(),
+                "-cp", dir.getPath() + File.pathSeparator + System.getProperty("java.class.path"),
+                "-processor", "registry.RegistryIndexProcessor", more.getPath()));
+        
+        try (URLClassLoader cl = new URLClassLoader(new URL[] { dir.toURI().toURL() }, getClass().getClassLoader())) {
+            RegistryIndex index = RegistryIndex.load(cl);
+            assertEquals(3, index.size());
+            Registry.setIndex(index);
+            try {
+                r.registerInstance("email", "abc@yahoo.com");
+                Class<?> c = cl.loadClass("Indexed");
+                Object inst = r.getInstance(c);
+                
+                assertSame(inst, r.getInstance(cl.loadClass("IndexedApi")));
+                assertEquals("abc@yahoo.com", c.getField("email").get(inst));
+                
+                Class<?> oc = cl.loadClass("IndexedOwner");
+                Object owner = r.getInstance(oc);
+                assertSame(inst, oc.getMethod("api").invoke(owner));
+                assertSame(inst, oc.getMethod("provided").invoke(owner));
+                r.dispose();
+                assertEquals(1, oc.getField("closed").get(null));
+            } finally {
+                Registry.setIndex(null);
+            }
+        }
+    }
+    
 }
 
 interface AI { }
@@ -125,6 +496,22 @@ class C {
     @Inject B bField;
 }
 
+class Gauge {
+    final A a;
+    @Inject B b;
+    @Inject @Named("port") int port;
+    @Inject @Named("size") long size;
+    @Inject @Named("ratio") double ratio;
+    @Inject @Named("debug") boolean debug;
+    @Inject @Named("weight") short weight;
+    @Inject @Named("label") String label;
+    
+    @Inject
+    public Gauge(A a) {
+        this.a = a;
+    }
+}
+
 @Default(D.class)
 interface DI { }
 
@@ -143,6 +530,33 @@ class F {
     @Inject @Named A iname;
 }
 
+class P {
+    @Inject Provider<A> aProvider;
+}
+
+class L {
+    @Inject @Lazy AI ai;
+    @Inject @Lazy Svc svc;
+}
+
+@Default(SvcImpl.class)
+interface Svc {
+    String greet(String who);
+}
+
+class SvcImpl implements Svc {
+    public String greet(String who) {
+        return "hello " + who;
+    }
+}
+
+class Settings {
+    @Inject @Named int port;
+    @Inject @Named long bufferSize;
+    @Inject @Named boolean enabled;
+    @Inject @Named java.time.Duration timeout;
+}
+
 class FS {
     @Inject @Named String email;
 }
@@ -154,4 +568,127 @@ class FSI implements Initializer {
     public void init() throws Exception {
         email = "mailto:" + email;
     }
-}
\ No newline at end of file
+}
+
+class Heavy { }
+
+class HeavyUser {
+    @Inject Heavy heavy;
+    @Inject @Named("connection") String connection;
+}
+
+class Resources {
+    int created;
+    
+    @Provides @Named("connection")
+    String connection(@Named("host") String host) {
+        created++;
+        return "jdbc://" + host;
+    }
+    
+    @Provides
+    Heavy heavy() {
+        created++;
+        return new Heavy();
+    }
+}
+
+class Endpoints {
+    @Provides @Named("endpoint")
+    String endpoint(@Named("host") String host, @Named("port") int port) {
+        return host + ":" + port;
+    }
+}
+
+class Retries {
+    @Provides @Named("retries")
+    String retries(int count) {
+        return "x" + count;
+    }
+}
+
+class Labels {
+    @Provides @Named("label")
+    String label(@Named("") String value) {
+        return value;
+    }
+}
+
+@Singleton
+class Pool implements AutoCloseable {
+    @Inject @Named("closed") List<String> closed;
+    
+    public void close() {
+        closed.add("pool");
+    }
+}
+
+@Singleton
+class Service {
+    @Inject Pool pool;
+    
+    @PreDestroy
+    void stop() {
+        pool.closed.add("service");
+    }
+}
+
+interface Store {
+}
+
+@Singleton
+class FileStore implements Store, AutoCloseable {
+    @Inject @Named("closed") List<String> closed;
+    
+    public void close() {
+        closed.add("store");
+    }
+}
+
+@Singleton
+class Indexer {
+    @Inject Store store;
+    @Inject @Named("closed") List<String> closed;
+    
+    @PreDestroy
+    void stop() throws InterruptedException {
+        Thread.sleep(20);
+        closed.add("indexer");
+    }
+}
+
+@Singleton
+class Broken implements AutoCloseable {
+    public void close() throws IOException {
+        throw new IOException("broken");
+    }
+}
+
+@Singleton
+class ProvidedResource implements AutoCloseable {
+    @Inject Provider<A> a;
+    @Inject @Named("closed") List<String> closed;
+    
+    public void close() {
+        closed.add("resource");
+    }
+}
+
+class Stores {
+    @Provides
+    Store store(@Named("closed") List<String> closed) {
+        return new ProducedStore(closed);
+    }
+}
+
+class ProducedStore implements Store, AutoCloseable {
+    final List<String> closed;
+    
+    ProducedStore(List<String> closed) {
+        this.closed = closed;
+    }
+    
+    public void close() {
+        closed.add("produced");
+    }
+}
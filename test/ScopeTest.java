@@ -0,0 +1,130 @@
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import registry.*;
+
+
+public class ScopeTest {
+    Registry r;
+    
+    @Before
+    public void init() {
+        r = new Registry();
+    }
+    
+    @Test
+    public void threadScope() throws Exception {
+        PerThread first = r.getInstance(PerThread.class);
+        assertSame(first, r.getInstance(PerThread.class));
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PerThread other = executor.submit(new Callable<PerThread>() {
+            public PerThread call() throws Exception {
+                return r.getInstance(PerThread.class);
+            }
+        }).get();
+        executor.shutdown();
+        assertNotSame(first, other);
+    }
+    
+    @Test
+    public void requestScope() throws Exception {
+        RequestScope scope = (RequestScope)r.getScope(RequestScoped.class);
+        scope.enter();
+        PerRequest inst = r.getInstance(PerRequest.class);
+        assertSame(inst, r.getInstance(PerRequest.class));
+        scope.exit();
+        
+        assertTrue(inst.closed);
+        scope.enter();
+        assertNotSame(inst, r.getInstance(PerRequest.class));
+        scope.exit();
+    }
+    
+    @Test(expected=RegistryException.class)
+    public void requestScopeNotActive() throws Exception {
+        r.getInstance(PerRequest.class);
+    }
+    
+    @Test
+    public void boundedScopeEvictsAndCloses() throws Exception {
+        r.registerScope(Cached.class, new BoundedScope(1));
+        CachedOne one = r.getInstance(CachedOne.class);
+        assertSame(one, r.getInstance(CachedOne.class));
+        
+        r.getInstance(CachedTwo.class);
+        assertTrue(one.closed);
+        assertNotSame(one, r.getInstance(CachedOne.class));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void boundedScopeRejectsEmptyBound() throws Exception {
+        new BoundedScope(0);
+    }
+    
+    @Test
+    public void boundedScopeKeepsBuilderFailure() throws Exception {
+        BoundedScope scope = new BoundedScope(1, 1, TimeUnit.MILLISECONDS);
+        scope.getInstance(CachedBroken.class, new RegistryInstanceBuilder<CachedBroken>() {
+            public CachedBroken createInstance() {
+                return new CachedBroken();
+            }
+        });
+        Thread.sleep(5);
+        try {
+            scope.getInstance(CachedBroken.class, new RegistryInstanceBuilder<CachedBroken>() {
+                public CachedBroken createInstance() throws Exception {
+                    throw new IllegalStateException("build failed");
+                }
+            });
+            fail("builder failure swallowed");
+        } catch (IllegalStateException e) {
+            assertEquals("build failed", e.getMessage());
+            assertEquals(1, e.getSuppressed().length);
+            assertTrue(e.getSuppressed()[0] instanceof RegistryException);
+        }
+        assertEquals(0, scope.size());
+    }
+    
+    @Test
+    public void scopeVisibleFromChild() throws Exception {
+        r.registerScope(Cached.class, new BoundedScope(10));
+        Registry child = new Registry(r);
+        
+        assertSame(r.getInstance(CachedOne.class), child.getInstance(CachedOne.class));
+    }
+}
+
+@ThreadScoped
+class PerThread { }
+
+@RequestScoped
+class PerRequest implements AutoCloseable {
+    boolean closed;
+    
+    public void close() {
+        closed = true;
+    }
+}
+
+@Cached
+class CachedOne implements AutoCloseable {
+    boolean closed;
+    
+    public void close() {
+        closed = true;
+    }
+}
+
+@Cached
+class CachedTwo { }
+
+@Cached
+class CachedBroken implements AutoCloseable {
+    public void close() throws Exception {
+        throw new Exception("close failed");
+    }
+}
@@ -12,6 +12,19 @@ public class StaticTest {
         assertNotNull(G.aField);
     }
     
+    @Test
+    public void injectStaticsOncePerRegistry() throws Exception {
+        Registry r = new Registry();
+        r.injectStatics(G.class, H.class);
+        A a = G.aField;
+        r.injectStatics(G.class);
+        
+        assertSame(a, G.aField);
+        r.reset();
+        r.injectStatics(G.class);
+        assertNotSame(a, G.aField);
+    }
+    
     @Test
     public void ecorateSelfStatic() {
         A aField = H.aField;